@@ -0,0 +1,119 @@
+package benchmark;
+
+import bank.Bank;
+import bank.CompactBank;
+import bank.PartitionedBank;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Переводы и чтение баланса в {@link Bank} (счета по строке UUID), в {@link CompactBank} (числовые номера,
+ * примитивные массивы) и в {@link PartitionedBank} (партиции с потоком-владельцем) при миллионе счетов.
+ * Память сравнивает {@link AccountStoreFootprint}.
+ *
+ * @author Perekhod Oleg
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class AccountStoreBenchmark {
+
+    private static final int ACCOUNTS = 1_000_000;
+
+    @Param({"bank", "compact", "partitioned"})
+    private String store;
+
+    private Bank bank;
+    private String[] accounts;
+    private CompactBank compactBank;
+    private PartitionedBank partitionedBank;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("bank".equals(store)) {
+            bank = new Bank();
+            accounts = new String[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                accounts[i] = bank.createAccount(1_000_000);
+            }
+        } else if ("compact".equals(store)) {
+            compactBank = new CompactBank();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                compactBank.createAccount(1_000_000);
+            }
+        } else {
+            partitionedBank = new PartitionedBank();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                partitionedBank.createAccount(1_000_000);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (bank != null) {
+            bank.close();
+        } else if (compactBank != null) {
+            compactBank.close();
+        } else {
+            partitionedBank.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void transfer() {
+        doTransfer();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void transferContended() {
+        doTransfer();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long getBalance() {
+        int account = ThreadLocalRandom.current().nextInt(ACCOUNTS);
+        if (bank != null) {
+            return bank.getBalance(accounts[account]);
+        }
+        return compactBank != null ? compactBank.getBalance(account) : partitionedBank.getBalance(account);
+    }
+
+    private void doTransfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(ACCOUNTS);
+        int to = random.nextInt(ACCOUNTS);
+        while (to == from) {
+            to = random.nextInt(ACCOUNTS);
+        }
+        if (bank != null) {
+            bank.transfer(accounts[from], accounts[to], 1);
+        } else if (compactBank != null) {
+            compactBank.transfer(from, to, 1);
+        } else {
+            partitionedBank.transfer(from, to, 1);
+        }
+    }
+
+}
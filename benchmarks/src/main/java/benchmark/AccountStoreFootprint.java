@@ -0,0 +1,54 @@
+package benchmark;
+
+import bank.Bank;
+import bank.CompactBank;
+
+/**
+ * Память на счет в {@link Bank} и в {@link CompactBank}: занятая куча после сборки мусора до и после создания счетов.
+ * Номера счетов {@link Bank} (строки UUID) считаются, их надо где-то хранить, чтобы обращаться к счетам.
+ * <p>
+ * Запуск: java -Xmx4g -cp benchmarks.jar benchmark.AccountStoreFootprint [число счетов]
+ *
+ * @author Perekhod Oleg
+ */
+public class AccountStoreFootprint {
+
+    public static void main(String[] args) {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        long before = usedHeap();
+        Bank bank = new Bank();
+        String[] nums = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            nums[i] = bank.createAccount(100);
+        }
+        long bankBytes = usedHeap() - before;
+        report("Bank", bankBytes, accounts);
+        bank.close();
+        bank = null;
+        nums = null;
+
+        before = usedHeap();
+        CompactBank compactBank = new CompactBank();
+        for (int i = 0; i < accounts; i++) {
+            compactBank.createAccount(100);
+        }
+        long compactBytes = usedHeap() - before;
+        report("CompactBank", compactBytes, accounts);
+        compactBank.close();
+    }
+
+    private static void report(String store, long bytes, int accounts) {
+        System.out.printf("%-12s %,d accounts: %,d MB, %.1f bytes/account%n",
+                store, accounts, bytes / (1024 * 1024), (double) bytes / accounts);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
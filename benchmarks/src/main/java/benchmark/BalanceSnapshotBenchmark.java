@@ -0,0 +1,88 @@
+package benchmark;
+
+import bank.Bank;
+import bank.BalanceSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Снимок и проверка суммы балансов двух миллионов счетов: без нагрузки и во время переводов. В группе
+ * underLoad время снимка и пропускная способность переводов меряются одновременно.
+ *
+ * @author Perekhod Oleg
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class BalanceSnapshotBenchmark {
+
+    private static final int ACCOUNTS = 2_000_000;
+
+    private Bank bank;
+    private String[] accounts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bank = new Bank();
+        accounts = new String[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = bank.createAccount(1_000_000);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bank.close();
+    }
+
+    @Benchmark
+    public boolean snapshot() {
+        return check(bank.snapshot());
+    }
+
+    @Benchmark
+    @Group("underLoad")
+    @GroupThreads(1)
+    public boolean snapshotUnderLoad() {
+        return check(bank.snapshot());
+    }
+
+    @Benchmark
+    @Group("underLoad")
+    @GroupThreads(3)
+    public void transferUnderLoad() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(ACCOUNTS);
+        int to = random.nextInt(ACCOUNTS);
+        while (to == from) {
+            to = random.nextInt(ACCOUNTS);
+        }
+        bank.tryTransfer(accounts[from], accounts[to], 1);
+    }
+
+    private static boolean check(BalanceSnapshot snapshot) {
+        if (!snapshot.isConsistent()) {
+            throw new IllegalStateException("Total " + snapshot.getTotal() + " != " + snapshot.getExpectedTotal());
+        }
+        return true;
+    }
+
+}
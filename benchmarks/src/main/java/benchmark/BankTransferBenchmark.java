@@ -0,0 +1,84 @@
+package benchmark;
+
+import bank.Bank;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bank.transfer при равномерном выборе счетов и при перекосе, когда большая часть переводов идет через несколько
+ * "горячих" счетов. Суммы меньше порога службы безопасности, чтобы мерить только сам перевод.
+ *
+ * @author Perekhod Oleg
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BankTransferBenchmark {
+
+    private static final int ACCOUNTS = 10_000;
+    private static final int HOT_ACCOUNTS = 4;
+    //доля переводов через горячие счета при перекосе
+    private static final double HOT_RATIO = 0.9;
+
+    @Param({"uniform", "skewed"})
+    private String distribution;
+
+    private Bank bank;
+    private String[] accounts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bank = new Bank();
+        accounts = new String[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = bank.createAccount(1_000_000);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void transfer() {
+        doTransfer();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void transferContended() {
+        doTransfer();
+    }
+
+    private void doTransfer() {
+        int from = randomAccount();
+        int to = randomAccount();
+        while (to == from) {
+            to = randomAccount();
+        }
+        bank.transfer(accounts[from], accounts[to], 1);
+    }
+
+    private int randomAccount() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if ("skewed".equals(distribution) && random.nextDouble() < HOT_RATIO) {
+            return random.nextInt(HOT_ACCOUNTS);
+        }
+        return random.nextInt(ACCOUNTS);
+    }
+
+}
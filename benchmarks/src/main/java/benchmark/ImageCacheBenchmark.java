@@ -0,0 +1,99 @@
+package benchmark;
+
+import cache.ImageCacheConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * putToCache/getFromCache для разных размеров данных и доли рабочего набора, помещающейся в память (остальное
+ * лежит на "диске" в памяти, см. {@link InMemoryImageCache}), в один и в несколько потоков.
+ *
+ * @author Perekhod Oleg
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageCacheBenchmark {
+
+    private static final int ENTRIES = 256;
+
+    @Param({"1024", "65536", "1048576"})
+    private int payloadSize;
+
+    //какая часть рабочего набора помещается в память
+    @Param({"1.0", "0.5", "0.1"})
+    private double memoryRatio;
+
+    private InMemoryImageCache cache;
+    private int[] ids;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = new InMemoryImageCache(new ImageCacheConfig()
+                .memoryLimit((int) Math.min(Integer.MAX_VALUE, (long) (ENTRIES * (long) payloadSize * memoryRatio))));
+        payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        ids = new int[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            ids[i] = cache.putToCache(payload.clone());
+        }
+        //ждем, пока вытесненные записи запишутся
+        for (int id : ids) {
+            cache.getFromCache(id);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] get() {
+        return cache.getFromCache(randomId());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] getContended() {
+        return cache.getFromCache(randomId());
+    }
+
+    //кладем и сразу удаляем, чтобы рабочий набор не рос
+    @Benchmark
+    @Threads(1)
+    public boolean putRemove() {
+        return cache.removeFromCache(cache.putToCache(payload));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean putRemoveContended() {
+        return cache.removeFromCache(cache.putToCache(payload));
+    }
+
+    private int randomId() {
+        return ids[ThreadLocalRandom.current().nextInt(ENTRIES)];
+    }
+
+}
@@ -0,0 +1,37 @@
+package benchmark;
+
+import cache.ImageCache;
+import cache.ImageCacheConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Кэш с файловой системой в памяти: в бенчмарках меряем сам кэш, а не диск
+ *
+ * @author Perekhod Oleg
+ */
+public class InMemoryImageCache extends ImageCache {
+
+    private final Map<String, byte[]> fileSystem = new ConcurrentHashMap<>();
+
+    public InMemoryImageCache(ImageCacheConfig config) {
+        super(config);
+    }
+
+    @Override
+    protected byte[] loadFromFile(String filename) {
+        return fileSystem.get(filename);
+    }
+
+    @Override
+    protected void saveToFile(String filename, byte[] data) {
+        fileSystem.put(filename, data);
+    }
+
+    @Override
+    protected void deleteFile(String filename) {
+        fileSystem.remove(filename);
+    }
+
+}
@@ -0,0 +1,96 @@
+package benchmark;
+
+import cache.Data;
+import cache.IntConcurrentMap;
+import cache.MemoryData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IntConcurrentMap} и {@code ConcurrentHashMap<Integer, Data>} как индекс кэша: get и смесь 90% get / 10% put
+ * в один и в несколько потоков при разном числе записей.
+ *
+ * @author Perekhod Oleg
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class IntConcurrentMapBenchmark {
+
+    private static final Data DATA = new MemoryData(new byte[0]);
+
+    @Param({"chm", "int"})
+    private String map;
+
+    @Param({"100000", "5000000"})
+    private int entries;
+
+    private Map<Integer, Data> chm;
+    private IntConcurrentMap<Data> icm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("chm".equals(map)) {
+            chm = new ConcurrentHashMap<>();
+            for (int i = 1; i <= entries; i++) {
+                chm.put(i, DATA);
+            }
+        } else {
+            icm = new IntConcurrentMap<>();
+            for (int i = 1; i <= entries; i++) {
+                icm.put(i, DATA);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Data get() {
+        return doGet(randomKey());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Data getContended() {
+        return doGet(randomKey());
+    }
+
+    //90% чтений, 10% записей
+    @Benchmark
+    @Threads(4)
+    public Data mixedContended() {
+        int key = randomKey();
+        if (key % 10 == 0) {
+            return chm != null ? chm.put(key, DATA) : icm.put(key, DATA);
+        }
+        return doGet(key);
+    }
+
+    private Data doGet(int key) {
+        return chm != null ? chm.get(key) : icm.get(key);
+    }
+
+    private int randomKey() {
+        return 1 + ThreadLocalRandom.current().nextInt(entries);
+    }
+
+}
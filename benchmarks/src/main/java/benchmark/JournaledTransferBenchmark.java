@@ -0,0 +1,93 @@
+package benchmark;
+
+import bank.Bank;
+import bank.TransferJournal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Цена журнала для Bank.transfer: без журнала, с асинхронным сбросом и с ожиданием fsync. В режиме SYNC
+ * пропускная способность растет с числом потоков за счет group commit.
+ *
+ * @author Perekhod Oleg
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournaledTransferBenchmark {
+
+    private static final int ACCOUNTS = 10_000;
+
+    @Param({"none", "ASYNC", "SYNC"})
+    private String journal;
+
+    private Bank bank;
+    private Path path;
+    private String[] accounts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if ("none".equals(journal)) {
+            bank = new Bank();
+        } else {
+            path = Files.createTempFile("transfer-journal", ".log");
+            bank = new Bank(new TransferJournal(path, TransferJournal.Durability.valueOf(journal), 10));
+        }
+        accounts = new String[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = bank.createAccount(1_000_000);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        bank.close();
+        if (path != null) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void transfer() {
+        doTransfer();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void transferConcurrent() {
+        doTransfer();
+    }
+
+    private void doTransfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(ACCOUNTS);
+        int to = random.nextInt(ACCOUNTS);
+        while (to == from) {
+            to = random.nextInt(ACCOUNTS);
+        }
+        bank.transfer(accounts[from], accounts[to], 1);
+    }
+
+}
@@ -5,21 +5,61 @@ import bank.exception.BankException;
 import bank.exception.NotEnoughMoneyException;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
+ * Для "горячих" счетов, на которые зачисляют деньги из многих потоков, есть режим распределенного баланса: зачисления
+ * идут в ячейки по потокам (как в LongAdder), а списание и getMoney под блокировкой сливают ячейки в основной баланс,
+ * поэтому остаются точными и не уводят баланс в минус. Режим включается вручную ({@link #enableStripedBalance()}) или
+ * сам, когда CAS основного баланса не удается stripeThreshold раз.
+ * <p>
+ * Для снимков балансов ({@link Bank#snapshot()}) счет хранит баланс на начало последней эпохи: перевод новой эпохи
+ * перед изменением баланса сохраняет прежний ({@link #saveSnapshot(long)}).
+ *
  * @author Perekhod Oleg
  */
 public class Account {
 
+    //по умолчанию сколько неудачных CAS включают распределенный баланс
+    static final int STRIPE_THRESHOLD = 1024;
+    //ячейки через 8 long (64 байта), чтобы не делить кэш-линию
+    static final int CELL_STRIDE = 8;
+    static final int CELLS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
     private final String num;
+    //в режиме распределенного баланса - основной баланс, в который сливаются ячейки
     private final AtomicLong money;
     private final AtomicBoolean blocked;
+    private final int stripeThreshold;
+    private final AtomicInteger casFailures = new AtomicInteger();
+    //null - обычный режим
+    private volatile AtomicLongArray cells;
+    //списание и слив ячеек в распределенном режиме
+    private final Object drainLock = new Object();
+    //эпоха, в которой счет создан: в снимки этой и более ранних эпох он не входит
+    private final long createdEpoch;
+    //баланс на начало эпохи savedEpoch
+    private volatile long savedEpoch;
+    private long savedMoney;
+    //номер в истории операций, выставляется до публикации счета
+    private int ledgerId = -1;
 
     public Account(String num, long money) {
+        this(num, money, STRIPE_THRESHOLD);
+    }
+
+    Account(String num, long money, int stripeThreshold) {
+        this(num, money, stripeThreshold, 0);
+    }
+
+    Account(String num, long money, int stripeThreshold, long createdEpoch) {
         this.money = new AtomicLong(money);
         this.blocked = new AtomicBoolean(false);
         this.num = num;
+        this.stripeThreshold = stripeThreshold;
+        this.createdEpoch = createdEpoch;
     }
 
     public void block() {
@@ -31,37 +71,111 @@ public class Account {
     }
 
     public long getMoney() {
-        return money.get();
+        if (cells == null) {
+            return money.get();
+        }
+        synchronized (drainLock) {
+            drain();
+            return money.get();
+        }
+    }
+
+    /**
+     * Включаем распределенный баланс для счета, на который зачисляют из многих потоков
+     */
+    public void enableStripedBalance() {
+        if (cells == null) {
+            synchronized (drainLock) {
+                if (cells == null) {
+                    cells = new AtomicLongArray(CELLS * CELL_STRIDE);
+                }
+            }
+        }
+    }
+
+    public boolean isStripedBalance() {
+        return cells != null;
     }
 
     /**
      * Снимаем деньги с аккаунта
      */
     public void retrieveMoney(long amount) throws BankException {
-        money.updateAndGet(money -> {
-            checkIsBlocked();
-            if (money < amount) {
-                throw new NotEnoughMoneyException(num, amount);
+        TransferStatus status = tryRetrieveMoney(amount);
+        if (status == TransferStatus.ACCOUNT_IS_BLOCKED) {
+            throw new AccountIsBlockedException(num);
+        }
+        if (status == TransferStatus.NOT_ENOUGH_MONEY) {
+            throw new NotEnoughMoneyException(num, amount);
+        }
+    }
+
+    /**
+     * Снимаем деньги с аккаунта без исключений и выделения памяти
+     *
+     * @return OK, ACCOUNT_IS_BLOCKED или NOT_ENOUGH_MONEY
+     */
+    public TransferStatus tryRetrieveMoney(long amount) {
+        if (cells != null) {
+            synchronized (drainLock) {
+                if (isBlocked()) {
+                    return TransferStatus.ACCOUNT_IS_BLOCKED;
+                }
+                drain();
+                return retrieveFromBase(amount);
             }
-            return money - amount;
-        });
+        }
+        return retrieveFromBase(amount);
     }
 
     /**
      * Добавляем деньги на аккаунт
      */
     public void addMoney(long amount) throws AccountIsBlockedException {
-        money.updateAndGet(money -> {
-            checkIsBlocked();
-            return money + amount;
-        });
+        if (tryAddMoney(amount) != TransferStatus.OK) {
+            throw new AccountIsBlockedException(num);
+        }
+    }
+
+    /**
+     * Добавляем деньги на аккаунт без исключений и выделения памяти
+     *
+     * @return OK или ACCOUNT_IS_BLOCKED
+     */
+    public TransferStatus tryAddMoney(long amount) {
+        if (isBlocked()) {
+            return TransferStatus.ACCOUNT_IS_BLOCKED;
+        }
+        AtomicLongArray cells = this.cells;
+        if (cells != null) {
+            cells.getAndAdd(cellIndex(), amount);
+            return TransferStatus.OK;
+        }
+        while (true) {
+            long prev = money.get();
+            if (money.compareAndSet(prev, prev + amount)) {
+                return TransferStatus.OK;
+            }
+            onCasFailure();
+            if (isBlocked()) {
+                return TransferStatus.ACCOUNT_IS_BLOCKED;
+            }
+            if (this.cells != null) {
+                return tryAddMoney(amount);
+            }
+        }
     }
 
     /**
      * Возвращаем деньги на аккаунт
      */
     public void rollbackMoney(long amount) {
-        money.updateAndGet(money -> money + amount);
+        AtomicLongArray cells = this.cells;
+        if (cells != null) {
+            cells.getAndAdd(cellIndex(), amount);
+        } else {
+            money.addAndGet(amount);
+        }
     }
 
 
@@ -75,5 +189,86 @@ public class Account {
         return blocked.get();
     }
 
+    /**
+     * Изменение баланса при восстановлении из журнала, без проверок
+     */
+    void replayMoney(long delta) {
+        money.addAndGet(delta);
+    }
+
+    int getLedgerId() {
+        return ledgerId;
+    }
+
+    void setLedgerId(int ledgerId) {
+        this.ledgerId = ledgerId;
+    }
+
+    long getCreatedEpoch() {
+        return createdEpoch;
+    }
+
+    /**
+     * Сохраняем баланс на начало эпохи epoch, если он еще не сохранен (копирование при записи). Вызывается перед
+     * изменением баланса в новой эпохе и при чтении снимка.
+     */
+    void saveSnapshot(long epoch) {
+        if (savedEpoch < epoch) {
+            synchronized (this) {
+                if (savedEpoch < epoch) {
+                    savedMoney = getMoney();
+                    savedEpoch = epoch;
+                }
+            }
+        }
+    }
+
+    /**
+     * Баланс на начало эпохи epoch. Вызывается, пока не началась следующая эпоха.
+     */
+    long getSnapshotMoney(long epoch) {
+        saveSnapshot(epoch);
+        return savedMoney;
+    }
+
+    void onCasFailure() {
+        if (casFailures.incrementAndGet() == stripeThreshold) {
+            enableStripedBalance();
+        }
+    }
+
+    //Списание с основного баланса. В распределенном режиме вызывается под drainLock после слива ячеек.
+    private TransferStatus retrieveFromBase(long amount) {
+        while (true) {
+            if (isBlocked()) {
+                return TransferStatus.ACCOUNT_IS_BLOCKED;
+            }
+            long prev = money.get();
+            if (prev < amount) {
+                return TransferStatus.NOT_ENOUGH_MONEY;
+            }
+            if (money.compareAndSet(prev, prev - amount)) {
+                return TransferStatus.OK;
+            }
+            onCasFailure();
+        }
+    }
+
+    //Переносим накопленные в ячейках зачисления в основной баланс. Вызывается под drainLock.
+    private void drain() {
+        AtomicLongArray cells = this.cells;
+        for (int i = 0; i < cells.length(); i += CELL_STRIDE) {
+            long value = cells.getAndSet(i, 0);
+            if (value != 0) {
+                money.addAndGet(value);
+            }
+        }
+    }
+
+    static int cellIndex() {
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & (CELLS - 1)) * CELL_STRIDE;
+    }
+
 
 }
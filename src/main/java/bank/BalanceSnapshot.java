@@ -0,0 +1,103 @@
+package bank;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Согласованный снимок балансов всех счетов на начало эпохи ({@link Bank#snapshot()}). Балансы читаются и суммируются
+ * параллельно в общем fork-join пуле. Сумма должна совпасть с деньгами, внесенными при создании вошедших в снимок
+ * счетов: переводы деньги только перемещают.
+ *
+ * @author Perekhod Oleg
+ */
+public class BalanceSnapshot {
+
+    //столько счетов читает одна задача
+    private static final int CHUNK = 4096;
+
+    private final long epoch;
+    private final String[] accountNums;
+    private final long[] balances;
+    private final long total;
+    private final long expectedTotal;
+
+    BalanceSnapshot(long epoch, Account[] accounts, long expectedTotal) {
+        this.epoch = epoch;
+        this.accountNums = new String[accounts.length];
+        this.balances = new long[accounts.length];
+        this.expectedTotal = expectedTotal;
+        this.total = ForkJoinPool.commonPool().invoke(new ReadTask(accounts, 0, accounts.length));
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int size() {
+        return balances.length;
+    }
+
+    public String getAccountNum(int index) {
+        return accountNums[index];
+    }
+
+    public long getBalance(int index) {
+        return balances[index];
+    }
+
+    /**
+     * Сумма балансов снимка
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Сколько денег внесено при создании счетов снимка
+     */
+    public long getExpectedTotal() {
+        return expectedTotal;
+    }
+
+    /**
+     * Деньги не появились и не пропали
+     */
+    public boolean isConsistent() {
+        return total == expectedTotal;
+    }
+
+    /**
+     * Читаем балансы диапазона счетов на начало эпохи и суммируем
+     */
+    private final class ReadTask extends RecursiveTask<Long> {
+
+        private final Account[] accounts;
+        private final int from;
+        private final int to;
+
+        ReadTask(Account[] accounts, int from, int to) {
+            this.accounts = accounts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= CHUNK) {
+                long sum = 0;
+                for (int i = from; i < to; i++) {
+                    accountNums[i] = accounts[i].getNum();
+                    balances[i] = accounts[i].getSnapshotMoney(epoch);
+                    sum += balances[i];
+                }
+                return sum;
+            }
+            int middle = (from + to) >>> 1;
+            ReadTask left = new ReadTask(accounts, from, middle);
+            left.fork();
+            long right = new ReadTask(accounts, middle, to).compute();
+            return left.join() + right;
+        }
+    }
+
+}
@@ -3,65 +3,205 @@ package bank;
 import bank.exception.AccountIsBlockedException;
 import bank.exception.AccountNotFoundException;
 import bank.exception.BankException;
+import bank.exception.NotEnoughMoneyException;
 import bank.exception.SameAccountException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Переводы больше UNSAFE_LIMIT проверяются службой безопасности асинхронно, в {@link FraudCheckPipeline}
+ * с ограниченным параллелизмом и ограниченной очередью.
+ * <p>
+ * Если задан {@link TransferJournal}, создание счетов, переводы и блокировки пишутся в него, а при создании банка
+ * счета восстанавливаются по журналу.
+ * <p>
+ * Согласованный снимок всех балансов снимается без остановки переводов ({@link #snapshot()}).
+ * <p>
+ * Если задан {@link TransferLedger}, переводы, отклоненные переводы и блокировки пишутся в историю, доступную по счету
+ * страницами ({@link #getHistory}).
+ *
  * @author Perekhod Oleg
  */
-public class Bank {
+public class Bank implements AutoCloseable {
 
     /**
      * Судя по заданию коллекция никогда не мутирует, но в реальности она должна как-то заполнитсья данными
      * аккаунтов. Поэтому используем ConcurrentHashMap вместо HashMap.
      */
     private final Map<String, Account> accountMap = new ConcurrentHashMap<>();
-    //нам достаточно одного потока, т.к. служба безопасности все равно работает в synchronized режиме
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final FraudCheckPipeline fraudCheckPipeline;
+    //null - без журнала
+    private final TransferJournal journal;
+    //null - без истории
+    private final TransferLedger ledger;
+    //шлюз для submitTransfer, создается при первом вызове
+    private volatile TransferGateway gateway;
+    private boolean closed;
+    //снимки балансов: эпохи и деньги, внесенные при создании счетов
+    private final EpochGate epochGate = new EpochGate();
+    private final AtomicLong createdMoney = new AtomicLong();
+
+    /**
+     * Проверка службы безопасности по умолчанию: 64 параллельные проверки, очередь на 10000 проверок
+     */
+    public Bank() {
+        this(Bank::isFraud, 64, 10_000);
+    }
+
+    public Bank(FraudCheck fraudCheck, int fraudCheckThreads, int fraudCheckQueueCapacity) {
+        this(fraudCheck, fraudCheckThreads, fraudCheckQueueCapacity, null);
+    }
+
+    /**
+     * Банк с журналом и проверкой службы безопасности по умолчанию
+     */
+    public Bank(TransferJournal journal) {
+        this(Bank::isFraud, 64, 10_000, journal);
+    }
+
+    /**
+     * Счета восстанавливаются по журналу. Журнал закрывается в {@link #close()}.
+     */
+    public Bank(FraudCheck fraudCheck, int fraudCheckThreads, int fraudCheckQueueCapacity, TransferJournal journal) {
+        this(fraudCheck, fraudCheckThreads, fraudCheckQueueCapacity, journal, null);
+    }
+
+    /**
+     * Журнал и история необязательны (null). История не восстанавливается по журналу: в журнале нет времени операций.
+     * Журнал и история закрываются в {@link #close()}.
+     */
+    public Bank(FraudCheck fraudCheck, int fraudCheckThreads, int fraudCheckQueueCapacity, TransferJournal journal,
+                TransferLedger ledger) {
+        this.journal = journal;
+        this.ledger = ledger;
+        if (journal != null) {
+            journal.replay(new JournalReplay());
+        }
+        this.fraudCheckPipeline = new FraudCheckPipeline(fraudCheck, fraudCheckThreads, fraudCheckQueueCapacity);
+    }
 
     //--------------Публичное API----------------------//
 
     public String createAccount(long money) {
         String num = UUID.randomUUID().toString();
-        accountMap.put(num, new Account(num, money));
+        long epoch = epochGate.enter();
+        try {
+            Account account = new Account(num, money, Account.STRIPE_THRESHOLD, epoch);
+            if (ledger != null) {
+                account.setLedgerId(ledger.register(num));
+            }
+            //в журнал - до того, как на счет можно перевести деньги: иначе перевод может попасть в журнал раньше счета
+            if (journal != null) {
+                journal.create(num, money);
+            }
+            accountMap.put(num, account);
+            createdMoney.addAndGet(money);
+        } finally {
+            epochGate.exit();
+        }
+        if (journal != null) {
+            journal.awaitDurable();
+        }
         return num;
     }
 
     public void transfer(String fromAccountNum, String toAccountNum, long amount) throws BankException {
+        TransferStatus status = tryTransfer(fromAccountNum, toAccountNum, amount);
+        if (status != TransferStatus.OK) {
+            throw toException(status, fromAccountNum, toAccountNum, amount);
+        }
+    }
+
+    /**
+     * Перевод без исключений: отказ возвращается статусом, на пути отказа память не выделяется
+     */
+    public TransferStatus tryTransfer(String fromAccountNum, String toAccountNum, long amount) {
 
         if (fromAccountNum.equals(toAccountNum)) {
-            throw new SameAccountException();
+            return TransferStatus.SAME_ACCOUNT;
         }
 
         //1. получаем аккаунты если они есть
-        Account fromAccount = getAccount(fromAccountNum);
-        Account toAccount = getAccount(toAccountNum);
-
-        //2. проверяем заблокированы ли аккаунты (эти же самые проверки будут происходить во время снятия и добавления денег)
-        fromAccount.checkIsBlocked();
-        toAccount.checkIsBlocked();
+        Account fromAccount = accountMap.get(fromAccountNum);
+        Account toAccount = accountMap.get(toAccountNum);
+        if (fromAccount == null || toAccount == null) {
+            return TransferStatus.ACCOUNT_NOT_FOUND;
+        }
 
-        //3. снимаем деньги с одного аккаунта
-        fromAccount.retrieveMoney(amount);
+        TransferStatus status = tryTransfer(fromAccount, toAccount, amount);
+        //отказ из-за заблокированного получателя тоже мог оставить в журнале перевод и его отмену
+        if ((status == TransferStatus.OK || status == TransferStatus.ACCOUNT_IS_BLOCKED) && journal != null) {
+            journal.awaitDurable();
+        }
+        return status;
+    }
 
-        try {
-            //4.1 переводим деньги
-            toAccount.addMoney(amount);
-        } catch (AccountIsBlockedException e) {
-            //4.2 возвращаем деньги если второй аккаунт заблокирован
-            fromAccount.rollbackMoney(amount);
-            throw e;
+    /**
+     * Пакетный перевод. Переводы, не связанные общими счетами, выполняются параллельно в общем fork-join пуле,
+     * переводы с общими счетами - по порядку. Каждый счет ищется один раз на пакет.
+     *
+     * @return результаты в порядке переводов
+     */
+    public List<TransferStatus> transferAll(Collection<Transfer> transfers) {
+        TransferBatch batch = new TransferBatch(transfers.toArray(new Transfer[0]), accountMap);
+        List<TransferStatus> statuses = Arrays.asList(batch.execute(this::tryTransfer));
+        for (int i = 0; i < statuses.size(); i++) {
+            if (batch.getFailure(i) != null) {
+                throw batch.getFailure(i);
+            }
+        }
+        if (journal != null) {
+            journal.awaitDurable();
         }
+        return statuses;
+    }
 
-        //5. проверка службы безопасности
-        securityCheck(fromAccount, toAccount, amount);
+    /**
+     * Пакетный перевод для {@link TransferGateway}: исключения не выбрасываются, а остаются в пакете по каждому
+     * переводу, потому что другие переводы пакета к этому времени уже могли выполниться. Если журнал не удалось
+     * синхронизировать, выполненные переводы остаются выполненными: ошибку журнала получат следующие переводы.
+     */
+    TransferBatch executeBatch(Collection<Transfer> transfers) {
+        TransferBatch batch = new TransferBatch(transfers.toArray(new Transfer[0]), accountMap);
+        batch.execute(this::tryTransfer);
+        if (journal != null) {
+            try {
+                journal.awaitDurable();
+            } catch (RuntimeException e) {
+                //журнал больше не пишется, деньги уже перемещены
+            }
+        }
+        return batch;
+    }
 
+    /**
+     * Перевод без ожидания, через шлюз с настройками по умолчанию: очередь на 10000 переводов, пачки до 256 переводов,
+     * ожидание пачки до 1 мс. Для других настроек - свой {@link TransferGateway}.
+     */
+    public CompletableFuture<TransferStatus> submitTransfer(String fromAccountNum, String toAccountNum, long amount) {
+        TransferGateway gateway = this.gateway;
+        if (gateway == null) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Bank is closed");
+                }
+                gateway = this.gateway;
+                if (gateway == null) {
+                    gateway = new TransferGateway(this, 1, 10_000, 256, 1000);
+                    this.gateway = gateway;
+                }
+            }
+        }
+        return gateway.submitTransfer(fromAccountNum, toAccountNum, amount);
     }
 
     public long getBalance(String accountNum) {
@@ -72,26 +212,95 @@ public class Bank {
         return getAccount(accountNum).isBlocked();
     }
 
+    /**
+     * Распределенный баланс для "горячего" счета (например счета магазина), см. {@link Account#enableStripedBalance()}.
+     * Сам включается для счетов с большим числом конфликтов CAS.
+     */
+    public void enableStripedBalance(String accountNum) {
+        getAccount(accountNum).enableStripedBalance();
+    }
+
+    /**
+     * Согласованный снимок балансов всех счетов. Переводы не останавливаются: новая эпоха начинается, как только
+     * закончатся переводы, уже начавшие списание, а переводы новой эпохи перед изменением баланса сохраняют прежний.
+     * Балансы читаются и суммируются параллельно, {@link BalanceSnapshot#isConsistent()} проверяет, что деньги
+     * сохранились. Счета, созданные после начала эпохи, в снимок не входят.
+     */
+    public synchronized BalanceSnapshot snapshot() {
+        long[] expectedTotal = new long[1];
+        long epoch = epochGate.advance(() -> expectedTotal[0] = createdMoney.get());
+        List<Account> accounts = new ArrayList<>(accountMap.size());
+        for (Account account : accountMap.values()) {
+            if (account.getCreatedEpoch() < epoch) {
+                accounts.add(account);
+            }
+        }
+        return new BalanceSnapshot(epoch, accounts.toArray(new Account[0]), expectedTotal[0]);
+    }
+
+    /**
+     * Страница истории счета за интервал [fromMillis, toMillis], от новых операций к старым. Первая страница -
+     * с курсором {@link LedgerPage#START}, следующие - с {@link LedgerPage#getNextCursor()}.
+     */
+    public LedgerPage getHistory(String accountNum, long fromMillis, long toMillis, long cursor, int limit) {
+        if (ledger == null) {
+            throw new IllegalStateException("Bank has no ledger");
+        }
+        return ledger.query(getAccount(accountNum).getLedgerId(), fromMillis, toMillis, cursor, limit);
+    }
+
+    /**
+     * Последние count операций по счету
+     */
+    public List<LedgerEntry> getLastOperations(String accountNum, int count) {
+        return getHistory(accountNum, Long.MIN_VALUE, Long.MAX_VALUE, LedgerPage.START, count).getEntries();
+    }
+
+    /**
+     * Очередь и задержки проверок службы безопасности
+     */
+    public FraudCheckStats getFraudCheckStats() {
+        return fraudCheckPipeline.getStats();
+    }
+
+    /**
+     * Выполняем переводы из очереди шлюза, дожидаемся начатых проверок службы безопасности и останавливаем ее потоки,
+     * сбрасываем и закрываем журнал
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (gateway != null) {
+            gateway.close();
+        }
+        fraudCheckPipeline.close();
+        if (journal != null) {
+            journal.close();
+        }
+        if (ledger != null) {
+            ledger.close();
+        }
+    }
+
     //----------------------Служба Безопасности------------------//
 
-    private final static Integer UNSAFE_LIMIT = 50000;
-    private final Random random = new Random();
+    final static Integer UNSAFE_LIMIT = 50000;
 
     private void securityCheck(Account fromAccount, Account toAccount, long amount) {
         if (amount > UNSAFE_LIMIT) {
-            executorService.submit(() -> {
-                if (isFraud(fromAccount.getNum(), toAccount.getNum(), amount)) {
-                    fromAccount.block();
-                    toAccount.block();
-                }
+            fraudCheckPipeline.submit(fromAccount.getNum(), toAccount.getNum(), amount, () -> {
+                block(fromAccount);
+                block(toAccount);
             });
         }
     }
 
-    private synchronized boolean isFraud(String fromAccountNum, String toAccountNum, long amount) {
+    static boolean isFraud(String fromAccountNum, String toAccountNum, long amount) {
         try {
             Thread.sleep(1000);
-            return random.nextBoolean();
+            return ThreadLocalRandom.current().nextBoolean();
         } catch (InterruptedException e) {
             return true;
         }
@@ -100,6 +309,103 @@ public class Bank {
 
     //---------------------UTIL--------------------//
 
+    //Перевод между найденными счетами
+    private TransferStatus tryTransfer(Account fromAccount, Account toAccount, long amount) {
+        //2. проверяем заблокированы ли аккаунты (эти же самые проверки будут происходить во время снятия и добавления денег)
+        if (fromAccount.isBlocked() || toAccount.isBlocked()) {
+            return TransferStatus.ACCOUNT_IS_BLOCKED;
+        }
+
+        //3-4. снимаем и зачисляем деньги
+        TransferStatus status = moveMoney(fromAccount, toAccount, amount);
+        if (status != TransferStatus.OK) {
+            return status;
+        }
+
+        //5. пишем перевод в историю (в журнал он записан при списании)
+        if (ledger != null) {
+            ledger.transfer(fromAccount.getLedgerId(), toAccount.getLedgerId(), amount);
+        }
+
+        //6. проверка службы безопасности
+        securityCheck(fromAccount, toAccount, amount);
+        return TransferStatus.OK;
+    }
+
+    //Списание, зачисление и возврат при отказе - целиком в одной эпохе снимков, см. snapshot()
+    private TransferStatus moveMoney(Account fromAccount, Account toAccount, long amount) {
+        long epoch = epochGate.enter();
+        try {
+            fromAccount.saveSnapshot(epoch);
+            toAccount.saveSnapshot(epoch);
+
+            //3. снимаем деньги с одного аккаунта
+            TransferStatus status = fromAccount.tryRetrieveMoney(amount);
+            if (status != TransferStatus.OK) {
+                return status;
+            }
+
+            //пишем перевод в журнал до зачисления: перевод полученных денег попадет в журнал только после этого
+            //(синхронизацию с диском ждет публичный метод)
+            if (journal != null) {
+                try {
+                    journal.transfer(fromAccount.getNum(), toAccount.getNum(), amount);
+                } catch (RuntimeException e) {
+                    //журнал закрыт или не пишется: перевода не было
+                    fromAccount.rollbackMoney(amount);
+                    throw e;
+                }
+            }
+
+            //4.1 переводим деньги
+            status = toAccount.tryAddMoney(amount);
+            if (status != TransferStatus.OK) {
+                //4.2 возвращаем деньги если второй аккаунт заблокирован. Отмену пишем в журнал до возврата, но деньги
+                //возвращаем, даже если журнал закрыт или не пишется
+                try {
+                    if (journal != null) {
+                        journal.rollback(fromAccount.getNum(), toAccount.getNum(), amount);
+                    }
+                } finally {
+                    fromAccount.rollbackMoney(amount);
+                    if (ledger != null) {
+                        ledger.rejected(fromAccount.getLedgerId(), toAccount.getLedgerId(), amount);
+                    }
+                }
+            }
+            return status;
+        } finally {
+            epochGate.exit();
+        }
+    }
+
+    //Исключение для throwing API. Какой счет виноват, выясняем заново: это путь отказа, он и так дорогой.
+    private BankException toException(TransferStatus status, String fromAccountNum, String toAccountNum, long amount) {
+        switch (status) {
+            case SAME_ACCOUNT:
+                return new SameAccountException();
+            case ACCOUNT_NOT_FOUND:
+                return new AccountNotFoundException(accountMap.containsKey(fromAccountNum) ? toAccountNum : fromAccountNum);
+            case ACCOUNT_IS_BLOCKED:
+                return new AccountIsBlockedException(isBlocked(fromAccountNum) ? fromAccountNum : toAccountNum);
+            case NOT_ENOUGH_MONEY:
+                return new NotEnoughMoneyException(fromAccountNum, amount);
+            default:
+                throw new IllegalArgumentException(status.name());
+        }
+    }
+
+    //Блокировка по решению службы безопасности
+    private void block(Account account) {
+        account.block();
+        if (journal != null) {
+            journal.block(account.getNum());
+        }
+        if (ledger != null) {
+            ledger.block(account.getLedgerId());
+        }
+    }
+
     private Account getAccount(String accountNum) {
         Account res = accountMap.get(accountNum);
         if (res == null) {
@@ -108,5 +414,35 @@ public class Bank {
         return res;
     }
 
+    //Восстановление счетов по журналу: операции применяются без проверок
+    private class JournalReplay implements TransferJournal.Visitor {
+
+        @Override
+        public void create(String num, long money) {
+            Account account = new Account(num, money);
+            if (ledger != null) {
+                account.setLedgerId(ledger.register(num));
+            }
+            accountMap.put(num, account);
+            createdMoney.addAndGet(money);
+        }
+
+        @Override
+        public void transfer(String fromNum, String toNum, long amount) {
+            accountMap.get(fromNum).replayMoney(-amount);
+            accountMap.get(toNum).replayMoney(amount);
+        }
+
+        @Override
+        public void rollback(String fromNum, String toNum, long amount) {
+            accountMap.get(toNum).replayMoney(-amount);
+            accountMap.get(fromNum).replayMoney(amount);
+        }
+
+        @Override
+        public void block(String num) {
+            accountMap.get(num).block();
+        }
+    }
 
 }
@@ -0,0 +1,188 @@
+package bank;
+
+import bank.exception.AccountIsBlockedException;
+import bank.exception.AccountNotFoundException;
+import bank.exception.BankException;
+import bank.exception.NotEnoughMoneyException;
+import bank.exception.SameAccountException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Банк для десятков миллионов счетов. Счетам выдаются плотные числовые номера, балансы лежат в AtomicLongArray,
+ * флаги блокировки - битами в AtomicIntegerArray. Массивы выделяются кусками по CHUNK_SIZE счетов по мере создания
+ * счетов. Счет занимает чуть больше 8 байт против сотен байт у {@link Bank} (Account, AtomicLong, AtomicBoolean, строка
+ * UUID и узел ConcurrentHashMap), а поиск счета - сдвиг и индекс вместо хэширования строки.
+ * <p>
+ * Семантика переводов та же, что у {@link Bank}, включая проверку службы безопасности.
+ *
+ * @author Perekhod Oleg
+ */
+public class CompactBank implements AutoCloseable {
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicReferenceArray<AtomicLongArray> balances = new AtomicReferenceArray<>(MAX_CHUNKS);
+    //по биту на счет
+    private final AtomicReferenceArray<AtomicIntegerArray> blocked = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private final FraudCheckPipeline fraudCheckPipeline;
+
+    /**
+     * Проверка службы безопасности по умолчанию: 64 параллельные проверки, очередь на 10000 проверок
+     */
+    public CompactBank() {
+        this(Bank::isFraud, 64, 10_000);
+    }
+
+    public CompactBank(FraudCheck fraudCheck, int fraudCheckThreads, int fraudCheckQueueCapacity) {
+        this.fraudCheckPipeline = new FraudCheckPipeline(fraudCheck, fraudCheckThreads, fraudCheckQueueCapacity);
+    }
+
+    //--------------Публичное API----------------------//
+
+    /**
+     * @return номер счета, номера выдаются подряд с 0
+     */
+    public int createAccount(long money) {
+        int id;
+        do {
+            id = nextId.get();
+            if (id == Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too many accounts");
+            }
+        } while (!nextId.compareAndSet(id, id + 1));
+        int chunk = id >>> CHUNK_BITS;
+        if (balances.get(chunk) == null) {
+            //сначала флаги: счет считается существующим, когда есть кусок балансов
+            blocked.compareAndSet(chunk, null, new AtomicIntegerArray(CHUNK_SIZE / 32));
+            balances.compareAndSet(chunk, null, new AtomicLongArray(CHUNK_SIZE));
+        }
+        //не set: номер можно угадать и перевести на счет до того, как мы запишем начальный баланс
+        balances.get(chunk).addAndGet(id & (CHUNK_SIZE - 1), money);
+        return id;
+    }
+
+    public void transfer(int fromAccountNum, int toAccountNum, long amount) throws BankException {
+        TransferStatus status = tryTransfer(fromAccountNum, toAccountNum, amount);
+        switch (status) {
+            case OK:
+                return;
+            case SAME_ACCOUNT:
+                throw new SameAccountException();
+            case ACCOUNT_NOT_FOUND:
+                throw new AccountNotFoundException(String.valueOf(exists(fromAccountNum) ? toAccountNum : fromAccountNum));
+            case ACCOUNT_IS_BLOCKED:
+                throw new AccountIsBlockedException(String.valueOf(isBlocked(fromAccountNum) ? fromAccountNum : toAccountNum));
+            case NOT_ENOUGH_MONEY:
+                throw new NotEnoughMoneyException(String.valueOf(fromAccountNum), amount);
+            default:
+                throw new IllegalArgumentException(status.name());
+        }
+    }
+
+    /**
+     * Перевод без исключений и выделения памяти
+     */
+    public TransferStatus tryTransfer(int fromAccountNum, int toAccountNum, long amount) {
+        if (fromAccountNum == toAccountNum) {
+            return TransferStatus.SAME_ACCOUNT;
+        }
+
+        //1. проверяем, что счета есть
+        if (!exists(fromAccountNum) || !exists(toAccountNum)) {
+            return TransferStatus.ACCOUNT_NOT_FOUND;
+        }
+
+        //2. проверяем заблокированы ли счета
+        if (isBlockedUnchecked(fromAccountNum) || isBlockedUnchecked(toAccountNum)) {
+            return TransferStatus.ACCOUNT_IS_BLOCKED;
+        }
+
+        //3. снимаем деньги с одного счета
+        AtomicLongArray fromChunk = balances.get(fromAccountNum >>> CHUNK_BITS);
+        int fromIndex = fromAccountNum & (CHUNK_SIZE - 1);
+        while (true) {
+            if (isBlockedUnchecked(fromAccountNum)) {
+                return TransferStatus.ACCOUNT_IS_BLOCKED;
+            }
+            long prev = fromChunk.get(fromIndex);
+            if (prev < amount) {
+                return TransferStatus.NOT_ENOUGH_MONEY;
+            }
+            if (fromChunk.compareAndSet(fromIndex, prev, prev - amount)) {
+                break;
+            }
+        }
+
+        //4.1 переводим деньги, 4.2 возвращаем деньги если второй счет заблокирован
+        if (isBlockedUnchecked(toAccountNum)) {
+            fromChunk.addAndGet(fromIndex, amount);
+            return TransferStatus.ACCOUNT_IS_BLOCKED;
+        }
+        balances.get(toAccountNum >>> CHUNK_BITS).addAndGet(toAccountNum & (CHUNK_SIZE - 1), amount);
+
+        //5. проверка службы безопасности
+        if (amount > Bank.UNSAFE_LIMIT) {
+            fraudCheckPipeline.submit(String.valueOf(fromAccountNum), String.valueOf(toAccountNum), amount, () -> {
+                block(fromAccountNum);
+                block(toAccountNum);
+            });
+        }
+        return TransferStatus.OK;
+    }
+
+    public long getBalance(int accountNum) {
+        checkExists(accountNum);
+        return balances.get(accountNum >>> CHUNK_BITS).get(accountNum & (CHUNK_SIZE - 1));
+    }
+
+    public boolean isBlocked(int accountNum) {
+        checkExists(accountNum);
+        return isBlockedUnchecked(accountNum);
+    }
+
+    public void block(int accountNum) {
+        checkExists(accountNum);
+        int bit = 1 << (accountNum & 31);
+        AtomicIntegerArray flags = blocked.get(accountNum >>> CHUNK_BITS);
+        int index = (accountNum & (CHUNK_SIZE - 1)) >>> 5;
+        while (true) {
+            int prev = flags.get(index);
+            if ((prev & bit) != 0 || flags.compareAndSet(index, prev, prev | bit)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Дожидаемся начатых проверок службы безопасности и останавливаем ее потоки
+     */
+    @Override
+    public void close() {
+        fraudCheckPipeline.close();
+    }
+
+    //---------------------UTIL--------------------//
+
+    private boolean exists(int accountNum) {
+        return accountNum >= 0 && accountNum < nextId.get() && balances.get(accountNum >>> CHUNK_BITS) != null;
+    }
+
+    private void checkExists(int accountNum) {
+        if (!exists(accountNum)) {
+            throw new AccountNotFoundException(String.valueOf(accountNum));
+        }
+    }
+
+    private boolean isBlockedUnchecked(int accountNum) {
+        int flags = blocked.get(accountNum >>> CHUNK_BITS).get((accountNum & (CHUNK_SIZE - 1)) >>> 5);
+        return (flags & (1 << (accountNum & 31))) != 0;
+    }
+
+}
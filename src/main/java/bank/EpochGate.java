@@ -0,0 +1,71 @@
+package bank;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Граница эпох для снимков балансов. Операция, меняющая балансы, выполняется между {@link #enter()} и
+ * {@link #exit()} целиком в одной эпохе. {@link #advance(Runnable)} ненадолго закрывает вход, дожидается выхода
+ * начатых операций и начинает новую эпоху: в этот момент ни один перевод не находится между списанием и зачислением.
+ * <p>
+ * Счетчики начатых операций разнесены по ячейкам потоков (как в {@link Account}), вход и выход стоят по атомарному
+ * инкременту своей ячейки и чтению volatile-флага.
+ *
+ * @author Perekhod Oleg
+ */
+class EpochGate {
+
+    private final AtomicLongArray active = new AtomicLongArray(Account.CELLS * Account.CELL_STRIDE);
+    private volatile boolean closed;
+    private volatile long epoch;
+
+    /**
+     * @return эпоха, в которой выполняется операция
+     */
+    long enter() {
+        int cell = Account.cellIndex();
+        while (true) {
+            active.incrementAndGet(cell);
+            if (!closed) {
+                return epoch;
+            }
+            //идет смена эпохи: выходим и ждем, чтобы не задерживать ее
+            active.decrementAndGet(cell);
+            while (closed) {
+                Thread.yield();
+            }
+        }
+    }
+
+    void exit() {
+        active.decrementAndGet(Account.cellIndex());
+    }
+
+    /**
+     * Начинаем новую эпоху. atBoundary выполняется, когда начатых операций нет, а новые ждут.
+     *
+     * @return новая эпоха
+     */
+    synchronized long advance(Runnable atBoundary) {
+        closed = true;
+        try {
+            while (!idle()) {
+                Thread.yield();
+            }
+            atBoundary.run();
+            return ++epoch;
+        } finally {
+            closed = false;
+        }
+    }
+
+    //Ячейку читаем после закрытия входа: операция, успевшая войти, уже увеличила свою ячейку
+    private boolean idle() {
+        for (int i = 0; i < active.length(); i += Account.CELL_STRIDE) {
+            if (active.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,12 @@
+package bank;
+
+/**
+ * Проверка перевода службой безопасности. Может работать долго, вызывается параллельно из нескольких потоков.
+ *
+ * @author Perekhod Oleg
+ */
+@FunctionalInterface
+public interface FraudCheck {
+
+    boolean isFraud(String fromAccountNum, String toAccountNum, long amount);
+}
@@ -0,0 +1,92 @@
+package bank;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Конвейер проверок службы безопасности. Проверки выполняются параллельно в пуле из threads потоков, в очереди
+ * может ждать не больше queueCapacity проверок. Если очередь заполнена, перевод ждет освободившегося места:
+ * пропускать проверку нельзя, а неограниченная очередь копилась бы бесконечно.
+ * <p>
+ * Если проверка признала перевод мошенническим (или упала), выполняется переданная с переводом блокировка счетов.
+ *
+ * @author Perekhod Oleg
+ */
+class FraudCheckPipeline {
+
+    private final FraudCheck fraudCheck;
+    private final ExecutorService executorService;
+    //места в пуле и в очереди
+    private final Semaphore slots;
+    private final AtomicInteger backlog = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder frauds = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    FraudCheckPipeline(FraudCheck fraudCheck, int threads, int queueCapacity) {
+        this.fraudCheck = fraudCheck;
+        this.executorService = Executors.newFixedThreadPool(threads);
+        this.slots = new Semaphore(threads + queueCapacity);
+    }
+
+    void submit(String fromAccountNum, String toAccountNum, long amount, Runnable blockAccounts) {
+        long start = System.nanoTime();
+        slots.acquireUninterruptibly();
+        backlog.incrementAndGet();
+        try {
+            executorService.execute(() -> {
+                try {
+                    if (isFraud(fromAccountNum, toAccountNum, amount)) {
+                        blockAccounts.run();
+                        frauds.increment();
+                    }
+                } finally {
+                    long latency = System.nanoTime() - start;
+                    totalLatencyNanos.add(latency);
+                    maxLatencyNanos.accumulateAndGet(latency, Math::max);
+                    completed.increment();
+                    backlog.decrementAndGet();
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //конвейер закрыт: проверка не поставлена, место возвращаем
+            backlog.decrementAndGet();
+            slots.release();
+            throw e;
+        }
+    }
+
+    FraudCheckStats getStats() {
+        return new FraudCheckStats(backlog.get(), completed.sum(), frauds.sum(), totalLatencyNanos.sum(), maxLatencyNanos.get());
+    }
+
+    /**
+     * Дожидаемся уже поставленных проверок и останавливаем пул
+     */
+    void close() {
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isFraud(String fromAccountNum, String toAccountNum, long amount) {
+        try {
+            return fraudCheck.isFraud(fromAccountNum, toAccountNum, amount);
+        } catch (RuntimeException e) {
+            //не смогли проверить - считаем перевод подозрительным
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package bank;
+
+/**
+ * Состояние конвейера проверок службы безопасности на момент запроса. Задержка считается от постановки проверки
+ * в очередь до вынесения решения.
+ *
+ * @author Perekhod Oleg
+ */
+public class FraudCheckStats {
+
+    private final int backlog;
+    private final long completed;
+    private final long frauds;
+    private final long totalLatencyNanos;
+    private final long maxLatencyNanos;
+
+    FraudCheckStats(int backlog, long completed, long frauds, long totalLatencyNanos, long maxLatencyNanos) {
+        this.backlog = backlog;
+        this.completed = completed;
+        this.frauds = frauds;
+        this.totalLatencyNanos = totalLatencyNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+    }
+
+    /**
+     * Сколько проверок ждут в очереди или выполняются
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Сколько проверок закончились блокировкой счетов
+     */
+    public long getFrauds() {
+        return frauds;
+    }
+
+    public long getMeanLatencyNanos() {
+        return completed == 0 ? 0 : totalLatencyNanos / completed;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "backlog=" + backlog + ", completed=" + completed + ", frauds=" + frauds + ", meanLatency="
+                + getMeanLatencyNanos() / 1_000_000 + "ms, maxLatency=" + maxLatencyNanos / 1_000_000 + "ms";
+    }
+
+}
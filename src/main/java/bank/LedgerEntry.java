@@ -0,0 +1,50 @@
+package bank;
+
+/**
+ * Запись истории операций ({@link TransferLedger})
+ *
+ * @author Perekhod Oleg
+ */
+public class LedgerEntry {
+
+    private final TransferLedger.Type type;
+    private final long timeMillis;
+    private final String fromAccountNum;
+    private final String toAccountNum;
+    private final long amount;
+
+    LedgerEntry(TransferLedger.Type type, long timeMillis, String fromAccountNum, String toAccountNum, long amount) {
+        this.type = type;
+        this.timeMillis = timeMillis;
+        this.fromAccountNum = fromAccountNum;
+        this.toAccountNum = toAccountNum;
+        this.amount = amount;
+    }
+
+    public TransferLedger.Type getType() {
+        return type;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * Для блокировки - заблокированный счет
+     */
+    public String getFromAccountNum() {
+        return fromAccountNum;
+    }
+
+    /**
+     * Для блокировки - null
+     */
+    public String getToAccountNum() {
+        return toAccountNum;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+}
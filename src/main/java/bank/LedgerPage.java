@@ -0,0 +1,40 @@
+package bank;
+
+import java.util.List;
+
+/**
+ * Страница истории счета, от новых записей к старым. Следующая страница запрашивается с {@link #getNextCursor()}.
+ *
+ * @author Perekhod Oleg
+ */
+public class LedgerPage {
+
+    /**
+     * Курсор первой страницы
+     */
+    public static final long START = Long.MAX_VALUE;
+
+    private final List<LedgerEntry> entries;
+    private final long nextCursor;
+
+    LedgerPage(List<LedgerEntry> entries, long nextCursor) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<LedgerEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Есть ли еще записи за интервал
+     */
+    public boolean hasNext() {
+        return nextCursor >= 0;
+    }
+
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+}
@@ -0,0 +1,335 @@
+package bank;
+
+import bank.exception.AccountIsBlockedException;
+import bank.exception.AccountNotFoundException;
+import bank.exception.BankException;
+import bank.exception.NotEnoughMoneyException;
+import bank.exception.SameAccountException;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Банк, в котором счета разделены на партиции, по умолчанию по числу ядер. Каждой партицией владеет один поток: он
+ * выполняет операции из очереди партиции и один пишет ее балансы и флаги блокировки, поэтому балансы - обычный long[]
+ * без CAS и блокировок. Операции ставятся в неблокирующую очередь, поток партиции спит, пока очередь пуста.
+ * <p>
+ * Номер счета = номер в партиции * число партиций + номер партиции. Перевод внутри партиции выполняется одной
+ * операцией. Перевод между партициями - в два шага: партиция отправителя списывает деньги и передает зачисление
+ * партиции получателя, а если получатель заблокирован - та возвращает деньги отправителю отдельной операцией
+ * (компенсация). Пока деньги в пути, их нет ни на одном из счетов.
+ * <p>
+ * Результат операции завершается в потоке партиции: продолжения CompletableFuture без Async выполняются в нем же и не
+ * должны ждать других операций банка.
+ *
+ * @author Perekhod Oleg
+ */
+public class PartitionedBank implements AutoCloseable {
+
+    private final Partition[] partitions;
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    private final FraudCheckPipeline fraudCheckPipeline;
+    private volatile boolean closed;
+
+    /**
+     * Партиция на ядро, проверка службы безопасности по умолчанию
+     */
+    public PartitionedBank() {
+        this(Runtime.getRuntime().availableProcessors(), Bank::isFraud, 64, 10_000);
+    }
+
+    public PartitionedBank(int partitions, FraudCheck fraudCheck, int fraudCheckThreads, int fraudCheckQueueCapacity) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be positive");
+        }
+        this.fraudCheckPipeline = new FraudCheckPipeline(fraudCheck, fraudCheckThreads, fraudCheckQueueCapacity);
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new Partition(i);
+        }
+    }
+
+    //--------------Публичное API----------------------//
+
+    /**
+     * Счета раскладываются по партициям по кругу
+     */
+    public int createAccount(long money) {
+        checkNotClosed();
+        Partition partition = partitions[Math.floorMod(nextPartition.getAndIncrement(), partitions.length)];
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        partition.submit(p -> result.complete(p.create(money)));
+        return result.join();
+    }
+
+    public void transfer(int fromAccountNum, int toAccountNum, long amount) throws BankException {
+        TransferStatus status = tryTransfer(fromAccountNum, toAccountNum, amount);
+        switch (status) {
+            case OK:
+                return;
+            case SAME_ACCOUNT:
+                throw new SameAccountException();
+            case ACCOUNT_NOT_FOUND:
+                throw new AccountNotFoundException(String.valueOf(exists(fromAccountNum) ? toAccountNum : fromAccountNum));
+            case ACCOUNT_IS_BLOCKED:
+                throw new AccountIsBlockedException(String.valueOf(isBlocked(fromAccountNum) ? fromAccountNum : toAccountNum));
+            case NOT_ENOUGH_MONEY:
+                throw new NotEnoughMoneyException(String.valueOf(fromAccountNum), amount);
+            default:
+                throw new IllegalArgumentException(status.name());
+        }
+    }
+
+    /**
+     * Перевод без исключений, ждем его завершения
+     */
+    public TransferStatus tryTransfer(int fromAccountNum, int toAccountNum, long amount) {
+        return transferAsync(fromAccountNum, toAccountNum, amount).join();
+    }
+
+    /**
+     * Ставим перевод в очередь партиции отправителя
+     */
+    public CompletableFuture<TransferStatus> transferAsync(int fromAccountNum, int toAccountNum, long amount) {
+        checkNotClosed();
+        CompletableFuture<TransferStatus> result = new CompletableFuture<>();
+        if (fromAccountNum == toAccountNum) {
+            result.complete(TransferStatus.SAME_ACCOUNT);
+        } else if (!exists(fromAccountNum) || !exists(toAccountNum)) {
+            result.complete(TransferStatus.ACCOUNT_NOT_FOUND);
+        } else {
+            partitionOf(fromAccountNum).submit(p -> debit(p, fromAccountNum, toAccountNum, amount, result));
+        }
+        return result;
+    }
+
+    public long getBalance(int accountNum) {
+        checkExists(accountNum);
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        partitionOf(accountNum).submit(p -> result.complete(p.balances[p.index(accountNum)]));
+        return result.join();
+    }
+
+    public boolean isBlocked(int accountNum) {
+        checkExists(accountNum);
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        partitionOf(accountNum).submit(p -> result.complete(p.blocked[p.index(accountNum)]));
+        return result.join();
+    }
+
+    public void block(int accountNum) {
+        checkExists(accountNum);
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        partitionOf(accountNum).submit(p -> {
+            p.block(accountNum);
+            result.complete(null);
+        });
+        result.join();
+    }
+
+    /**
+     * Новые переводы больше не принимаем, завершаем начатые и проверки службы безопасности, останавливаем потоки партиций.
+     * Вызывается, когда клиенты банка уже не ставят переводы.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        //перевод проходит не больше трех шагов: списание, зачисление, компенсация. После каждого круга барьеров
+        //выполнены все шаги, поставленные до него
+        for (int round = 0; round < 3; round++) {
+            CompletableFuture<?>[] barriers = new CompletableFuture<?>[partitions.length];
+            for (int i = 0; i < partitions.length; i++) {
+                CompletableFuture<Void> barrier = new CompletableFuture<>();
+                partitions[i].submit(p -> barrier.complete(null));
+                barriers[i] = barrier;
+            }
+            CompletableFuture.allOf(barriers).join();
+        }
+        fraudCheckPipeline.close();
+        for (Partition partition : partitions) {
+            partition.stop();
+        }
+    }
+
+    //----------------------Шаги перевода (в потоках партиций)------------------//
+
+    //1. в партиции отправителя
+    private void debit(Partition p, int fromAccountNum, int toAccountNum, long amount, CompletableFuture<TransferStatus> result) {
+        int from = p.index(fromAccountNum);
+        if (p.blocked[from]) {
+            result.complete(TransferStatus.ACCOUNT_IS_BLOCKED);
+            return;
+        }
+        if (p.balances[from] < amount) {
+            result.complete(TransferStatus.NOT_ENOUGH_MONEY);
+            return;
+        }
+        p.balances[from] -= amount;
+        Partition toPartition = partitionOf(toAccountNum);
+        if (toPartition == p) {
+            credit(p, fromAccountNum, toAccountNum, amount, result);
+        } else {
+            toPartition.submit(q -> credit(q, fromAccountNum, toAccountNum, amount, result));
+        }
+    }
+
+    //2. в партиции получателя
+    private void credit(Partition p, int fromAccountNum, int toAccountNum, long amount, CompletableFuture<TransferStatus> result) {
+        int to = p.index(toAccountNum);
+        if (p.blocked[to]) {
+            Partition fromPartition = partitionOf(fromAccountNum);
+            if (fromPartition == p) {
+                refund(p, fromAccountNum, amount, result);
+            } else {
+                fromPartition.submit(q -> refund(q, fromAccountNum, amount, result));
+            }
+            return;
+        }
+        p.balances[to] += amount;
+        result.complete(TransferStatus.OK);
+        securityCheck(fromAccountNum, toAccountNum, amount);
+    }
+
+    //3. компенсация в партиции отправителя
+    private static void refund(Partition p, int fromAccountNum, long amount, CompletableFuture<TransferStatus> result) {
+        p.balances[p.index(fromAccountNum)] += amount;
+        result.complete(TransferStatus.ACCOUNT_IS_BLOCKED);
+    }
+
+    //Блокировку по итогам проверки только ставим в очереди партиций и не ждем: поток партиции может сам ждать места
+    //в конвейере проверок, которое освободится только после этой блокировки
+    private void securityCheck(int fromAccountNum, int toAccountNum, long amount) {
+        if (amount > Bank.UNSAFE_LIMIT) {
+            fraudCheckPipeline.submit(String.valueOf(fromAccountNum), String.valueOf(toAccountNum), amount, () -> {
+                partitionOf(fromAccountNum).submit(p -> p.block(fromAccountNum));
+                partitionOf(toAccountNum).submit(p -> p.block(toAccountNum));
+            });
+        }
+    }
+
+    //---------------------UTIL--------------------//
+
+    private Partition partitionOf(int accountNum) {
+        return partitions[accountNum % partitions.length];
+    }
+
+    private boolean exists(int accountNum) {
+        return accountNum >= 0 && partitionOf(accountNum).index(accountNum) < partitionOf(accountNum).size;
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Bank is closed");
+        }
+    }
+
+    private void checkExists(int accountNum) {
+        if (!exists(accountNum)) {
+            throw new AccountNotFoundException(String.valueOf(accountNum));
+        }
+    }
+
+    /**
+     * Операция над партицией, выполняется в ее потоке
+     */
+    @FunctionalInterface
+    private interface Operation {
+
+        void apply(Partition partition);
+    }
+
+    /**
+     * Счета партиции и поток, который их пишет
+     */
+    private final class Partition {
+
+        private final int id;
+        private final Queue<Operation> queue = new ConcurrentLinkedQueue<>();
+        private final Thread worker;
+        //пишет только worker
+        private long[] balances = new long[1024];
+        private boolean[] blocked = new boolean[1024];
+        //число счетов, публикуется после записи начального баланса
+        private volatile int size;
+        private volatile boolean parked;
+        private volatile boolean running = true;
+
+        Partition(int id) {
+            this.id = id;
+            this.worker = new Thread(this::run, "bank-partition-" + id);
+            this.worker.setDaemon(true);
+            this.worker.start();
+        }
+
+        void submit(Operation operation) {
+            if (!running) {
+                throw new IllegalStateException("Bank is closed");
+            }
+            queue.offer(operation);
+            if (parked) {
+                LockSupport.unpark(worker);
+            }
+        }
+
+        int create(long money) {
+            int index = size;
+            int accountNum = index * partitions.length + id;
+            if (accountNum < 0 || accountNum / partitions.length != index) {
+                throw new IllegalStateException("Too many accounts");
+            }
+            if (index == balances.length) {
+                balances = Arrays.copyOf(balances, index * 2);
+                blocked = Arrays.copyOf(blocked, index * 2);
+            }
+            balances[index] = money;
+            size = index + 1;
+            return accountNum;
+        }
+
+        int index(int accountNum) {
+            return accountNum / partitions.length;
+        }
+
+        void block(int accountNum) {
+            blocked[index(accountNum)] = true;
+        }
+
+        void stop() {
+            running = false;
+            LockSupport.unpark(worker);
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            while (true) {
+                Operation operation = queue.poll();
+                if (operation != null) {
+                    try {
+                        operation.apply(this);
+                    } catch (RuntimeException e) {
+                        //операции не бросают исключений, но поток партиции терять нельзя
+                    }
+                    continue;
+                }
+                //очередь пуста: засыпаем, перепроверив ее после выставления флага (submit смотрит флаг после offer)
+                parked = true;
+                if (queue.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+    }
+
+}
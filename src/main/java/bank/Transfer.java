@@ -0,0 +1,32 @@
+package bank;
+
+/**
+ * Перевод для пакетной обработки ({@link Bank#transferAll(java.util.Collection)})
+ *
+ * @author Perekhod Oleg
+ */
+public class Transfer {
+
+    private final String fromAccountNum;
+    private final String toAccountNum;
+    private final long amount;
+
+    public Transfer(String fromAccountNum, String toAccountNum, long amount) {
+        this.fromAccountNum = fromAccountNum;
+        this.toAccountNum = toAccountNum;
+        this.amount = amount;
+    }
+
+    public String getFromAccountNum() {
+        return fromAccountNum;
+    }
+
+    public String getToAccountNum() {
+        return toAccountNum;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+}
@@ -0,0 +1,209 @@
+package bank;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Пакет переводов, разбитый на независимые группы. Переводы, связанные общими счетами (в том числе через цепочку
+ * других переводов), попадают в одну группу (система непересекающихся множеств по счетам). Группы не имеют общих
+ * счетов, поэтому выполняются параллельно без взаимных блокировок, а внутри группы переводы идут по порядку.
+ * <p>
+ * Исключение перевода (например, журнал не пишется) не прерывает пакет: оно запоминается для этого перевода и для
+ * оставшихся переводов его группы, которые уже не выполняются, а другие группы идут дальше. Так по каждому переводу
+ * известно, выполнен ли он.
+ *
+ * @author Perekhod Oleg
+ */
+class TransferBatch {
+
+    //меньше стольких переводов в задаче не делим
+    private static final int SEQUENTIAL_THRESHOLD = 256;
+
+    private final Transfer[] transfers;
+    private final TransferStatus[] results;
+    //исключения переводов, null - перевод выполнен или отклонен до выполнения
+    private final RuntimeException[] failures;
+    //счета переводов (индексы в accounts), -1 - перевод уже отклонен
+    private final int[] fromIndex;
+    private final int[] toIndex;
+    private final Account[] accounts;
+    //переводы, упорядоченные по группам; группа g - order[groupStart[g]..groupStart[g + 1])
+    private int[] order;
+    private int[] groupStart;
+
+    TransferBatch(Transfer[] transfers, Map<String, Account> accountMap) {
+        this.transfers = transfers;
+        this.results = new TransferStatus[transfers.length];
+        this.failures = new RuntimeException[transfers.length];
+        this.fromIndex = new int[transfers.length];
+        this.toIndex = new int[transfers.length];
+        Map<String, Integer> indexes = new HashMap<>();
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < transfers.length; i++) {
+            Transfer transfer = transfers[i];
+            fromIndex[i] = toIndex[i] = -1;
+            if (transfer.getFromAccountNum().equals(transfer.getToAccountNum())) {
+                results[i] = TransferStatus.SAME_ACCOUNT;
+                continue;
+            }
+            int from = index(transfer.getFromAccountNum(), indexes, accounts, accountMap);
+            int to = index(transfer.getToAccountNum(), indexes, accounts, accountMap);
+            if (from < 0 || to < 0) {
+                results[i] = TransferStatus.ACCOUNT_NOT_FOUND;
+                continue;
+            }
+            fromIndex[i] = from;
+            toIndex[i] = to;
+        }
+        this.accounts = accounts.toArray(new Account[0]);
+        group(this.accounts.length);
+    }
+
+    /**
+     * Выполняем группы параллельно в общем fork-join пуле
+     *
+     * @param executor выполняет один перевод
+     */
+    TransferStatus[] execute(TransferExecutor executor) {
+        new GroupsTask(0, groupStart.length - 1, executor).invoke();
+        return results;
+    }
+
+    /**
+     * Результат перевода. Вызывается после {@link #execute}.
+     */
+    TransferStatus getResult(int i) {
+        return results[i];
+    }
+
+    /**
+     * Исключение, из-за которого перевод не выполнен, или null. Вызывается после {@link #execute}.
+     */
+    RuntimeException getFailure(int i) {
+        return failures[i];
+    }
+
+    //---------------------UTIL---------------------------//
+
+    //Индекс счета в пакете, -1 - счета нет. Каждый счет ищется в accountMap один раз на пакет.
+    private static int index(String accountNum, Map<String, Integer> indexes, List<Account> accounts,
+                             Map<String, Account> accountMap) {
+        Integer index = indexes.get(accountNum);
+        if (index != null) {
+            return index;
+        }
+        Account account = accountMap.get(accountNum);
+        if (account == null) {
+            return -1;
+        }
+        indexes.put(accountNum, accounts.size());
+        accounts.add(account);
+        return accounts.size() - 1;
+    }
+
+    //Объединяем счета переводов в группы и раскладываем переводы по группам с сохранением порядка
+    private void group(int accountCount) {
+        int[] parent = new int[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            parent[i] = i;
+        }
+        for (int i = 0; i < transfers.length; i++) {
+            if (fromIndex[i] >= 0) {
+                int a = find(parent, fromIndex[i]);
+                int b = find(parent, toIndex[i]);
+                if (a != b) {
+                    parent[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+        }
+        //номер группы для каждого корня
+        int[] groupOfRoot = new int[accountCount];
+        int groups = 0;
+        for (int i = 0; i < accountCount; i++) {
+            if (find(parent, i) == i) {
+                groupOfRoot[i] = groups++;
+            }
+        }
+        //сортировка подсчетом: порядок переводов внутри группы сохраняется
+        int[] transferGroup = new int[transfers.length];
+        groupStart = new int[groups + 1];
+        for (int i = 0; i < transfers.length; i++) {
+            if (fromIndex[i] >= 0) {
+                transferGroup[i] = groupOfRoot[find(parent, fromIndex[i])];
+                groupStart[transferGroup[i] + 1]++;
+            }
+        }
+        for (int g = 0; g < groups; g++) {
+            groupStart[g + 1] += groupStart[g];
+        }
+        order = new int[groupStart[groups]];
+        int[] next = Arrays.copyOf(groupStart, groups);
+        for (int i = 0; i < transfers.length; i++) {
+            if (fromIndex[i] >= 0) {
+                order[next[transferGroup[i]]++] = i;
+            }
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Выполнение одного перевода между уже найденными счетами
+     */
+    @FunctionalInterface
+    interface TransferExecutor {
+
+        TransferStatus execute(Account fromAccount, Account toAccount, long amount);
+    }
+
+    //Выполняем группы [from, to), большие диапазоны делим пополам
+    private class GroupsTask extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+        private final TransferExecutor executor;
+
+        private GroupsTask(int from, int to, TransferExecutor executor) {
+            this.from = from;
+            this.to = to;
+            this.executor = executor;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && groupStart[to] - groupStart[from] > SEQUENTIAL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new GroupsTask(from, middle, executor), new GroupsTask(middle, to, executor));
+                return;
+            }
+            for (int g = from; g < to; g++) {
+                //после исключения остаток группы не выполняем: переводы в группе зависят от предыдущих
+                RuntimeException failure = null;
+                for (int k = groupStart[g]; k < groupStart[g + 1]; k++) {
+                    int i = order[k];
+                    if (failure == null) {
+                        try {
+                            results[i] = executor.execute(accounts[fromIndex[i]], accounts[toIndex[i]],
+                                    transfers[i].getAmount());
+                            continue;
+                        } catch (RuntimeException e) {
+                            failure = e;
+                        }
+                    }
+                    failures[i] = failure;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package bank;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Прием переводов без ожидания: {@link #submitTransfer} ставит перевод в ограниченную очередь и сразу возвращает
+ * CompletableFuture. Потоки-обработчики забирают переводы пачками до batchSize, выполняют пачку через
+ * {@link Bank#transferAll} (счета ищутся раз на пачку, независимые переводы идут параллельно, журнал синхронизируется
+ * раз на пачку) и завершают результаты пачки разом.
+ * <p>
+ * Первый перевод пачки ждет остальные не дольше maxLatencyMicros: 0 - берем то, что уже есть в очереди. Если очередь
+ * заполнена, submitTransfer ждет места (как {@link FraudCheckPipeline}): обработчики не успевают, и принимать больше
+ * значит копить очередь без предела.
+ * <p>
+ * Результаты завершаются в потоке-обработчике: продолжения CompletableFuture без Async выполняются в нем и
+ * задерживают следующую пачку. Если перевод упал с исключением (например, журнал не пишется), исключение получает
+ * только его результат: остальные переводы пачки к этому времени могли уже выполниться.
+ *
+ * @author Perekhod Oleg
+ */
+public class TransferGateway implements AutoCloseable {
+
+    //как часто простаивающий обработчик проверяет, не закрыт ли шлюз
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final Bank bank;
+    private final BlockingQueue<Submitted> queue;
+    private final int batchSize;
+    private final long maxLatencyNanos;
+    private final Thread[] consumers;
+    //постановка в очередь - под read lock, закрытие - под write lock: после закрытия в очередь никто не добавит
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    public TransferGateway(Bank bank, int consumers, int queueCapacity, int batchSize, long maxLatencyMicros) {
+        if (consumers < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("consumers and batchSize must be positive");
+        }
+        this.bank = bank;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+        this.consumers = new Thread[consumers];
+        for (int i = 0; i < consumers; i++) {
+            this.consumers[i] = new Thread(this::consume, "transfer-gateway-" + i);
+            this.consumers[i].setDaemon(true);
+            this.consumers[i].start();
+        }
+    }
+
+    /**
+     * Ставим перевод в очередь. Если очередь заполнена - ждем места.
+     */
+    public CompletableFuture<TransferStatus> submitTransfer(String fromAccountNum, String toAccountNum, long amount) {
+        Submitted submitted = new Submitted(new Transfer(fromAccountNum, toAccountNum, amount));
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Transfer gateway is closed");
+            }
+            queue.put(submitted);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            submitted.result.completeExceptionally(e);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        return submitted.result;
+    }
+
+    /**
+     * Сколько переводов ждет в очереди
+     */
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    /**
+     * Новые переводы больше не принимаем, выполняем оставшиеся в очереди и останавливаем обработчики. Переводы,
+     * поставленные одновременно с закрытием, либо выполняются, либо отклоняются с IllegalStateException.
+     */
+    @Override
+    public void close() {
+        //ждем переводы, которые уже ставятся в очередь (обработчики еще работают и освободят место)
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        for (Thread consumer : consumers) {
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    //---------------------UTIL---------------------------//
+
+    private void consume() {
+        List<Submitted> batch = new ArrayList<>(batchSize);
+        List<Transfer> transfers = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                Submitted first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                fill(batch);
+                for (Submitted submitted : batch) {
+                    transfers.add(submitted.transfer);
+                }
+                execute(batch, transfers);
+                batch.clear();
+                transfers.clear();
+            }
+        } catch (InterruptedException e) {
+            //обработчики никто не прерывает
+        }
+    }
+
+    //Добираем пачку: сначала то, что уже в очереди, потом ждем до maxLatency от начала пачки
+    private void fill(List<Submitted> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + maxLatencyNanos;
+        while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || closed) {
+                return;
+            }
+            Submitted next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void execute(List<Submitted> batch, List<Transfer> transfers) {
+        TransferBatch executed;
+        try {
+            executed = bank.executeBatch(transfers);
+        } catch (RuntimeException e) {
+            //пачка не выполнялась
+            for (Submitted submitted : batch) {
+                submitted.result.completeExceptionally(e);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            //например не удалось записать журнал: перевод не выполнен
+            RuntimeException failure = executed.getFailure(i);
+            if (failure != null) {
+                batch.get(i).result.completeExceptionally(failure);
+            } else {
+                batch.get(i).result.complete(executed.getResult(i));
+            }
+        }
+    }
+
+    /**
+     * Перевод в очереди и его будущий результат
+     */
+    private static final class Submitted {
+
+        private final Transfer transfer;
+        private final CompletableFuture<TransferStatus> result = new CompletableFuture<>();
+
+        Submitted(Transfer transfer) {
+            this.transfer = transfer;
+        }
+    }
+
+}
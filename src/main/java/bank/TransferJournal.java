@@ -0,0 +1,344 @@
+package bank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал операций банка: создание счетов, переводы и блокировки. По журналу состояние счетов восстанавливается при
+ * старте ({@link #replay(Visitor)}).
+ * <p>
+ * Запись операции добавляется в буфер журнала до того, как ее результат станет виден другим операциям. Буфер пишет на диск и
+ * синхронизирует отдельный поток, одним fsync - все записи, накопившиеся за время предыдущего (group commit).
+ * В режиме {@link Durability#SYNC} операция возвращает результат только после fsync своей записи, в режиме
+ * {@link Durability#ASYNC} - сразу, а записи сбрасываются на диск не реже раза в flushIntervalMillis: при падении
+ * теряются операции последних миллисекунд.
+ * <p>
+ * Перевод пишется после списания и до зачисления, счет - до того, как станет доступен для переводов. Поэтому перевод
+ * полученных денег лежит в журнале после перевода, который их принес, и любой префикс журнала, успевший на диск до
+ * падения, восстанавливает неотрицательные балансы. Если получатель оказался заблокирован, вслед за переводом пишется
+ * его отмена.
+ *
+ * @author Perekhod Oleg
+ */
+public class TransferJournal implements AutoCloseable {
+
+    /**
+     * Когда операция считается выполненной
+     */
+    public enum Durability {
+        //после fsync записи
+        SYNC,
+        //сразу, запись синхронизируется в фоне
+        ASYNC
+    }
+
+    //[тип, сумма, счет 1, счет 2, crc32]
+    static final int RECORD_SIZE = 48;
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+    private static final int CREATE = 1;
+    private static final int TRANSFER = 2;
+    private static final int BLOCK = 3;
+    private static final int ROLLBACK = 4;
+    //в режиме ASYNC столько накопленных байт сбрасываем, не дожидаясь интервала
+    private static final int FLUSH_BYTES = 1024 * RECORD_SIZE;
+
+    private final FileChannel channel;
+    private final Durability durability;
+    private final long flushIntervalNanos;
+    private final Thread committer;
+
+    //буфер записей и счетчики под блокировкой lock. Поток записи ждет на lock
+    private final Object lock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(FLUSH_BYTES);
+    private ByteBuffer spare = ByteBuffer.allocate(FLUSH_BYTES);
+    private long appended;
+    private boolean closed;
+
+    //сколько байт из добавленных уже на диске. Под блокировкой durable, операции SYNC ждут на ней
+    private final Object durable = new Object();
+    private long committed;
+    private IOException failure;
+
+    //позиция записи в файле, меняет только поток записи (и replay до первой операции)
+    private long writePosition;
+
+    public TransferJournal(Path path, Durability durability, long flushIntervalMillis) {
+        this.durability = durability;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.writePosition = channel.size() / RECORD_SIZE * RECORD_SIZE;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.committer = new Thread(this::commitLoop, "transfer-journal");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Проигрываем журнал с начала. Вызывается до первой операции. Недописанные при падении записи в конце журнала
+     * (неполные или с неверной контрольной суммой) отбрасываются.
+     */
+    void replay(Visitor visitor) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_SIZE);
+        CRC32 crc = new CRC32();
+        long readPosition = 0;
+        long position = 0;
+        try {
+            int read;
+            reading:
+            while ((read = channel.read(buffer, readPosition)) > 0) {
+                readPosition += read;
+                ((Buffer) buffer).flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    int offset = buffer.position();
+                    crc.reset();
+                    crc.update(buffer.array(), offset, CRC_OFFSET);
+                    if ((int) crc.getValue() != buffer.getInt(offset + CRC_OFFSET)) {
+                        break reading;
+                    }
+                    apply(buffer, visitor);
+                    position += RECORD_SIZE;
+                }
+                buffer.compact();
+            }
+            channel.truncate(position);
+            writePosition = position;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void create(String num, long money) {
+        append(CREATE, money, num, null);
+    }
+
+    void transfer(String fromNum, String toNum, long amount) {
+        append(TRANSFER, amount, fromNum, toNum);
+    }
+
+    /**
+     * Отмена записанного перевода: получатель заблокирован, деньги вернулись отправителю
+     */
+    void rollback(String fromNum, String toNum, long amount) {
+        append(ROLLBACK, amount, fromNum, toNum);
+    }
+
+    void block(String num) {
+        append(BLOCK, 0, num, null);
+    }
+
+    /**
+     * В режиме SYNC ждем, пока на диск попадут все записи, добавленные до вызова
+     */
+    void awaitDurable() {
+        if (durability != Durability.SYNC) {
+            return;
+        }
+        long target;
+        synchronized (lock) {
+            target = appended;
+        }
+        boolean interrupted = false;
+        synchronized (durable) {
+            while (committed < target && failure == null) {
+                try {
+                    durable.wait();
+                } catch (InterruptedException e) {
+                    //запись уже в буфере, дождаться ее дешевле, чем объяснять вызывающему, что с ней стало
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        }
+    }
+
+    /**
+     * Сбрасываем накопленные записи на диск и закрываем журнал
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notify();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (durable) {
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        }
+    }
+
+    //---------------------UTIL---------------------------//
+
+    private void append(int type, long amount, String num1, String num2) {
+        UUID account1 = UUID.fromString(num1);
+        UUID account2 = num2 == null ? null : UUID.fromString(num2);
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            if (pending.remaining() < RECORD_SIZE) {
+                pending = grow(pending);
+            }
+            pending.putInt(type).putLong(amount)
+                    .putLong(account1.getMostSignificantBits()).putLong(account1.getLeastSignificantBits())
+                    .putLong(account2 == null ? 0 : account2.getMostSignificantBits())
+                    .putLong(account2 == null ? 0 : account2.getLeastSignificantBits())
+                    //контрольную сумму считает поток записи
+                    .putInt(0);
+            appended += RECORD_SIZE;
+            if (durability == Durability.SYNC || pending.position() >= FLUSH_BYTES) {
+                lock.notify();
+            }
+        }
+        synchronized (durable) {
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        }
+    }
+
+    private void commitLoop() {
+        CRC32 crc = new CRC32();
+        while (true) {
+            ByteBuffer batch;
+            long end;
+            synchronized (lock) {
+                if (!awaitBatch()) {
+                    return;
+                }
+                batch = pending;
+                pending = spare;
+                end = appended;
+            }
+            try {
+                ((Buffer) batch).flip();
+                for (int offset = 0; offset < batch.limit(); offset += RECORD_SIZE) {
+                    crc.reset();
+                    crc.update(batch.array(), offset, CRC_OFFSET);
+                    batch.putInt(offset + CRC_OFFSET, (int) crc.getValue());
+                }
+                while (batch.hasRemaining()) {
+                    writePosition += channel.write(batch, writePosition);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (durable) {
+                    failure = e;
+                    durable.notifyAll();
+                }
+                return;
+            }
+            ((Buffer) batch).clear();
+            synchronized (lock) {
+                spare = batch;
+            }
+            synchronized (durable) {
+                committed = end;
+                durable.notifyAll();
+            }
+        }
+    }
+
+    //Ждем, пока есть что писать: в режиме SYNC - сразу, в ASYNC - интервал или FLUSH_BYTES. Вызывается под lock.
+    //false - журнал закрыт и все записано
+    private boolean awaitBatch() {
+        long deadline = 0;
+        try {
+            while (true) {
+                if (pending.position() == 0) {
+                    if (closed) {
+                        return false;
+                    }
+                    lock.wait();
+                    continue;
+                }
+                if (durability == Durability.SYNC || closed || pending.position() >= FLUSH_BYTES) {
+                    return true;
+                }
+                if (deadline == 0) {
+                    deadline = System.nanoTime() + flushIntervalNanos;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return true;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+        } catch (InterruptedException e) {
+            //поток журнала никто не прерывает, но если прервали - пишем, что есть
+            return pending.position() > 0;
+        }
+    }
+
+    private static void apply(ByteBuffer buffer, Visitor visitor) {
+        int type = buffer.getInt();
+        long amount = buffer.getLong();
+        String num1 = new UUID(buffer.getLong(), buffer.getLong()).toString();
+        String num2 = new UUID(buffer.getLong(), buffer.getLong()).toString();
+        buffer.getInt();
+        switch (type) {
+            case CREATE:
+                visitor.create(num1, amount);
+                break;
+            case TRANSFER:
+                visitor.transfer(num1, num2, amount);
+                break;
+            case ROLLBACK:
+                visitor.rollback(num1, num2, amount);
+                break;
+            case BLOCK:
+                visitor.block(num1);
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        ((Buffer) buffer).flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Получатель записей журнала при восстановлении
+     */
+    interface Visitor {
+
+        void create(String num, long money);
+
+        void transfer(String fromNum, String toNum, long amount);
+
+        void rollback(String fromNum, String toNum, long amount);
+
+        void block(String num);
+    }
+
+}
@@ -0,0 +1,295 @@
+package bank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * История операций банка: переводы, отклоненные переводы (получатель оказался заблокирован уже после проверки, деньги
+ * вернулись отправителю, балансы не изменились) и блокировки.
+ * Записи фиксированного размера лежат в кусках по CHUNK_RECORDS записей вне кучи (direct буферы) или в отображенном
+ * в память файле. Счета в записях - порядковые номера, выданные {@link #register(String)}.
+ * <p>
+ * Индекс по счету - цепочка назад: запись хранит номер предыдущей записи каждого из своих счетов, а по счету хранится
+ * номер последней записи. Запрос идет по цепочке от новых записей к старым страницами до limit записей и прекращается
+ * на записи старше начала интервала (время записей не убывает), поэтому в кучу попадает только страница.
+ * <p>
+ * Номер записи выдается атомарным счетчиком. В цепочки своих счетов запись встает под блокировками страйпов этих
+ * счетов, там же ей назначается время, поэтому время в каждой цепочке не убывает, а записи по разным счетам не ждут
+ * друг друга. Сама запись пишется уже без блокировки и публикуется флагом в битовой карте куска: запрос, дошедший по
+ * цепочке до еще не опубликованной записи, ждет ее. Регистрация счетов и выделение кусков - под блокировкой на this,
+ * массивы счетов и кусков при росте копируются, поэтому читаются без блокировки.
+ * <p>
+ * Файл в отображенном режиме - место хранения, а не журнал: при открытии он очищается, для восстановления балансов
+ * есть {@link TransferJournal}.
+ *
+ * @author Perekhod Oleg
+ */
+public class TransferLedger implements AutoCloseable {
+
+    /**
+     * Тип записи
+     */
+    public enum Type {
+        TRANSFER,
+        //перевод не состоялся: получатель оказался заблокирован, деньги вернулись отправителю
+        REJECTED,
+        BLOCK
+    }
+
+    //[время, сумма, тип, счет 1, счет 2, -, предыдущая запись счета 1, предыдущая запись счета 2]
+    static final int RECORD_SIZE = 48;
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_RECORDS = 1 << CHUNK_BITS;
+    private static final long CHUNK_BYTES = (long) CHUNK_RECORDS * RECORD_SIZE;
+    private static final int HEAD_PAGE_BITS = 10;
+    private static final int HEAD_PAGE_SIZE = 1 << HEAD_PAGE_BITS;
+    private static final int STRIPES = 64;
+    private static final Type[] TYPES = Type.values();
+
+    //null - куски в direct буферах
+    private final FileChannel channel;
+    private final LongSupplier clock;
+    private final Object[] stripes = new Object[STRIPES];
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong lastTime = new AtomicLong(Long.MIN_VALUE);
+    //меняются под блокировкой на this, при росте копируются
+    private volatile Chunk[] chunks = new Chunk[16];
+    private volatile String[] accountNums = new String[1024];
+    //номер последней записи по счету страницами по HEAD_PAGE_SIZE счетов, -1 - записей нет
+    private volatile AtomicLongArray[] heads = new AtomicLongArray[16];
+    private int accounts;
+
+    /**
+     * История вне кучи в direct буферах
+     */
+    public TransferLedger() {
+        this(null, System::currentTimeMillis);
+    }
+
+    /**
+     * История в отображенном в память файле
+     */
+    public TransferLedger(Path file) {
+        this(open(file), System::currentTimeMillis);
+    }
+
+    TransferLedger(FileChannel channel, LongSupplier clock) {
+        this.channel = channel;
+        this.clock = clock;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Регистрируем счет
+     *
+     * @return номер счета в истории
+     */
+    synchronized int register(String accountNum) {
+        int account = accounts;
+        String[] accountNums = this.accountNums;
+        if (account == accountNums.length) {
+            accountNums = Arrays.copyOf(accountNums, account * 2);
+        }
+        accountNums[account] = accountNum;
+        AtomicLongArray[] heads = this.heads;
+        int page = account >>> HEAD_PAGE_BITS;
+        if (page == heads.length) {
+            heads = Arrays.copyOf(heads, page * 2);
+        }
+        if (heads[page] == null) {
+            heads[page] = new AtomicLongArray(HEAD_PAGE_SIZE);
+            for (int i = 0; i < HEAD_PAGE_SIZE; i++) {
+                heads[page].set(i, -1);
+            }
+        }
+        //публикуем и тогда, когда массив не рос: счет используют только после register
+        this.accountNums = accountNums;
+        this.heads = heads;
+        accounts = account + 1;
+        return account;
+    }
+
+    void transfer(int fromAccount, int toAccount, long amount) {
+        append(Type.TRANSFER, fromAccount, toAccount, amount);
+    }
+
+    void rejected(int fromAccount, int toAccount, long amount) {
+        append(Type.REJECTED, fromAccount, toAccount, amount);
+    }
+
+    void block(int account) {
+        append(Type.BLOCK, account, -1, 0);
+    }
+
+    /**
+     * Страница истории счета за интервал [fromMillis, toMillis], от новых записей к старым.
+     *
+     * @param cursor {@link LedgerPage#START} или {@link LedgerPage#getNextCursor()} предыдущей страницы
+     */
+    LedgerPage query(int account, long fromMillis, long toMillis, long cursor, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        long next = cursor == LedgerPage.START ? head(account).get(account & (HEAD_PAGE_SIZE - 1)) : cursor;
+        //массивы читаем после начала цепочки: в них уже есть все, на что она ссылается
+        Chunk[] chunks = this.chunks;
+        String[] accountNums = this.accountNums;
+        List<LedgerEntry> entries = new ArrayList<>(Math.min(limit, 64));
+        while (next >= 0 && entries.size() < limit) {
+            Chunk recordChunk = chunks[(int) (next >>> CHUNK_BITS)];
+            recordChunk.awaitPublished(next);
+            ByteBuffer chunk = recordChunk.buffer;
+            int offset = (int) (next & (CHUNK_RECORDS - 1)) * RECORD_SIZE;
+            long time = chunk.getLong(offset);
+            if (time < fromMillis) {
+                next = -1;
+                break;
+            }
+            int account1 = chunk.getInt(offset + 20);
+            if (time <= toMillis) {
+                int account2 = chunk.getInt(offset + 24);
+                entries.add(new LedgerEntry(TYPES[chunk.getInt(offset + 16)], time, accountNums[account1],
+                        account2 < 0 ? null : accountNums[account2], chunk.getLong(offset + 8)));
+            }
+            next = chunk.getLong(offset + (account1 == account ? 32 : 40));
+        }
+        return new LedgerPage(entries, next);
+    }
+
+    /**
+     * Число записей в истории, включая еще не дописанные
+     */
+    public long size() {
+        return records.get();
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    //---------------------UTIL---------------------------//
+
+    private void append(Type type, int account1, int account2, long amount) {
+        long index = records.getAndIncrement();
+        Chunk recordChunk = chunk((int) (index >>> CHUNK_BITS));
+        //встаем в цепочки счетов и берем время под блокировками их страйпов (по возрастанию номера, чтобы не было
+        //взаимоблокировок): так в каждой цепочке время не убывает
+        int stripe1 = account1 & (STRIPES - 1);
+        int stripe2 = account2 < 0 ? stripe1 : account2 & (STRIPES - 1);
+        long time;
+        long prev1;
+        long prev2 = -1;
+        synchronized (stripes[Math.min(stripe1, stripe2)]) {
+            synchronized (stripes[Math.max(stripe1, stripe2)]) {
+                //время не убывает, даже если часы перевели назад: на этом держится остановка запроса по интервалу
+                time = lastTime.accumulateAndGet(clock.getAsLong(), Math::max);
+                prev1 = head(account1).getAndSet(account1 & (HEAD_PAGE_SIZE - 1), index);
+                if (account2 >= 0) {
+                    prev2 = head(account2).getAndSet(account2 & (HEAD_PAGE_SIZE - 1), index);
+                }
+            }
+        }
+        ByteBuffer chunk = recordChunk.buffer;
+        int offset = (int) (index & (CHUNK_RECORDS - 1)) * RECORD_SIZE;
+        chunk.putLong(offset, time);
+        chunk.putLong(offset + 8, amount);
+        chunk.putInt(offset + 16, type.ordinal());
+        chunk.putInt(offset + 20, account1);
+        chunk.putInt(offset + 24, account2);
+        chunk.putLong(offset + 32, prev1);
+        chunk.putLong(offset + 40, prev2);
+        recordChunk.publish(index);
+    }
+
+    private AtomicLongArray head(int account) {
+        return heads[account >>> HEAD_PAGE_BITS];
+    }
+
+    //Кусок записей, при необходимости выделяем его. Выделяется до того, как на запись сошлется цепочка
+    private Chunk chunk(int chunkIndex) {
+        Chunk[] chunks = this.chunks;
+        if (chunkIndex < chunks.length && chunks[chunkIndex] != null) {
+            return chunks[chunkIndex];
+        }
+        synchronized (this) {
+            chunks = this.chunks;
+            if (chunkIndex >= chunks.length) {
+                chunks = Arrays.copyOf(chunks, Math.max(chunks.length * 2, chunkIndex + 1));
+            }
+            if (chunks[chunkIndex] == null) {
+                chunks[chunkIndex] = new Chunk(allocateChunk(chunkIndex));
+            }
+            this.chunks = chunks;
+            return chunks[chunkIndex];
+        }
+    }
+
+    private ByteBuffer allocateChunk(int chunkIndex) {
+        if (channel == null) {
+            return ByteBuffer.allocateDirect((int) CHUNK_BYTES);
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, chunkIndex * CHUNK_BYTES, CHUNK_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FileChannel open(Path file) {
+        try {
+            return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Кусок записей и битовая карта опубликованных записей
+     */
+    private static final class Chunk {
+
+        private final ByteBuffer buffer;
+        private final AtomicLongArray published = new AtomicLongArray(CHUNK_RECORDS / 64);
+
+        Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void publish(long index) {
+            int record = (int) (index & (CHUNK_RECORDS - 1));
+            long bit = 1L << (record & 63);
+            published.getAndAccumulate(record >>> 6, bit, (bits, b) -> bits | b);
+        }
+
+        //Запись уже в цепочке, но еще дописывается: ждем недолго
+        void awaitPublished(long index) {
+            int record = (int) (index & (CHUNK_RECORDS - 1));
+            long bit = 1L << (record & 63);
+            while ((published.get(record >>> 6) & bit) == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,16 @@
+package bank;
+
+/**
+ * Результат перевода
+ *
+ * @author Perekhod Oleg
+ */
+public enum TransferStatus {
+
+    OK,
+    SAME_ACCOUNT,
+    ACCOUNT_NOT_FOUND,
+    ACCOUNT_IS_BLOCKED,
+    NOT_ENOUGH_MONEY
+
+}
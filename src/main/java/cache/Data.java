@@ -1,10 +1,21 @@
 package cache;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /**
  * Контейнер кэшируемых данных
  *
  * @author Perekhod Oleg
  */
 public interface Data {
+
     byte[] getData();
+
+    /**
+     * Неблокирующее получение данных. Медленная загрузка (если она есть) выполняется на переданном executor
+     */
+    default CompletableFuture<byte[]> getDataAsync(Executor executor) {
+        return CompletableFuture.completedFuture(getData());
+    }
 }
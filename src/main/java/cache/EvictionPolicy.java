@@ -0,0 +1,40 @@
+package cache;
+
+/**
+ * Политика вытеснения записей из памяти на диск.
+ * <p>
+ * Политика учитывает только записи, лежащие в памяти ({@link #onAdd(int)} / {@link #onRemove(int)}), но получает
+ * уведомления об обращениях ко всем записям кэша, в том числе к лежащим на диске. Реализации должны быть потокобезопасны.
+ *
+ * @author Perekhod Oleg
+ */
+public interface EvictionPolicy {
+
+    int NO_VICTIM = -1;
+
+    /**
+     * Запись размещена в памяти
+     */
+    void onAdd(int id);
+
+    /**
+     * Обращение к записи (запись может лежать как в памяти, так и на диске)
+     */
+    void onAccess(int id);
+
+    /**
+     * Запись покинула память (вытеснена на диск или удалена)
+     */
+    void onRemove(int id);
+
+    /**
+     * Кандидат на вытеснение из памяти или {@link #NO_VICTIM}, если в памяти ничего нет
+     */
+    int victim();
+
+    /**
+     * Стоит ли вытеснять victimId, чтобы освободить память для candidateId
+     */
+    boolean admit(int candidateId, int victimId);
+
+}
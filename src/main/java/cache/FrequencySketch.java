@@ -0,0 +1,68 @@
+package cache;
+
+/**
+ * Приблизительный счетчик частоты обращений (count-min sketch) с периодическим старением.
+ * <p>
+ * Каждый id попадает в {@link #DEPTH} счетчиков разных строк, оценка частоты - минимум из них. После
+ * {@code 10 * width} инкрементов все счетчики делятся пополам, поэтому старая популярность со временем забывается.
+ * Не потокобезопасен, синхронизация на стороне владельца.
+ *
+ * @author Perekhod Oleg
+ */
+class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param width ширина строки, округляется вверх до степени двойки
+     */
+    FrequencySketch(int width) {
+        int size = Integer.highestOneBit(Math.max(1, width - 1) << 1);
+        this.table = new int[size * DEPTH];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    void increment(int id) {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(id, row);
+            if (table[index] < MAX_COUNT) {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(int id) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, table[index(id, row)]);
+        }
+        return frequency;
+    }
+
+    private int index(int id, int row) {
+        int h = id * SEEDS[row];
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] >>>= 1;
+        }
+        additions /= 2;
+    }
+
+}
@@ -1,30 +1,111 @@
 package cache;
 
+import cache.exception.SpillQueueFullException;
+import cache.metrics.LatencyHistogram;
+import cache.metrics.MetricRegistry;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * Особенности реализации:
  * <p>
  * В случае если данные не влезают в память, то происходит сохранение данных на диск в отдельном потоке, а пользователю кэша сразу
  * отдается id. Если пользователь тут же запросит эти данные, то он получит блокировку на методе get(), до тех пор пока данные не запишутся на диск.
+ * <p>
+ * Запись на диск идет через ограниченную очередь пачками: после записи пачки один раз вызывается {@link #syncFiles()},
+ * и только потом данные пачки становятся доступны для чтения. Диск можно разбить на шарды
+ * ({@link ImageCacheConfig#spillShards(int)}): у каждого шарда своя очередь с потоком записи и свой пул чтения,
+ * шард выбирается по хэшу id ({@link #shardOf(int)}). Поведение при заполненной очереди задается
+ * {@link SpillBackpressure}.
+ * <p>
+ * В режиме дедупликации одинаковые данные (по SHA-256) хранятся один раз под служебным id, а выданные пользователям id
+ * ссылаются на них через {@link SharedContent}. Данные удаляются вместе с последним ссылающимся id.
+ * <p>
+ * Операции с файлами координируются блокировками чтения/записи, распределенными по id. Чтения разных файлов идут
+ * параллельно, поэтому реализации {@link #loadFromFile(String)} и {@link #saveToFile(String, byte[])} должны быть
+ * потокобезопасны для разных файлов. Одновременная запись и чтение одного и того же файла не происходит.
+ * <p>
+ * Когда память заполнена, холодные записи вытесняются на диск в соответствии с {@link EvictionPolicy} (по умолчанию
+ * {@link LruPolicy}). Политика может и не пустить новую запись в память, тогда на диск уходит сама новая запись.
+ * Записи, которые часто читают с диска, поднимаются обратно в память (через ту же политику), файл при этом остается.
+ * <p>
+ * В режиме {@link StorageMode#OFF_HEAP} данные в памяти хранятся вне кучи в слабах {@link SlabAllocator}, суммарный
+ * размер слабов ограничен memoryLimit.
+ * <p>
+ * Наследник может сохранять данные на диске между перезапусками: он сохраняет выданные id ({@link #persistIds(int)})
+ * и после перезапуска вызывает {@link #resume(int)}. Записи с диска не загружаются при старте, а подхватываются при первом
+ * обращении. Данные, лежавшие только в памяти, при перезапуске теряются.
+ * <p>
+ * Счетчики, показатели и гистограммы задержек доступны через {@link #getMetrics()}.
+ * <p>
+ * Большие данные можно класть из потока ({@link #putToCache(ReadableByteChannel, long)}): если они не помещаются
+ * в память, то пишутся на диск кусками в вызывающем потоке и целиком в куче не оказываются.
  *
  * @author Perekhod Oleg
  */
 
-public abstract class ImageCache {
+public abstract class ImageCache implements AutoCloseable {
 
     private final int memoryLimit;
-    private final Map<Integer, Data> cache;
+    private final IntConcurrentMap<Data> cache;
     private final AtomicInteger memoryUsage;
     private final AtomicInteger ids;
-    private final ExecutorService executorService;
-    private final Lock lock = new ReentrantLock();
+    //до какого id выдача сохранена наследником (см. persistIds)
+    private volatile int persistedIds;
+    //есть записи, оставшиеся на диске с прошлого запуска
+    private volatile boolean resumed;
+    //очередь записи и пул чтения на каждый шард диска
+    private final WriteBehindQueue<PendingWrite>[] writeBehindQueues;
+    private final ExecutorService[] readExecutorServices;
+    private final StripedReadWriteLock ioLocks = new StripedReadWriteLock(64);
+    private final EvictionPolicy evictionPolicy;
+    //вытеснение - медленный путь, поэтому выполняем его в один поток
+    private final Lock evictionLock = new ReentrantLock();
+    private final int promotionThreshold;
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final LongAdder memoryHits = metrics.counter("memoryHits");
+    private final LongAdder diskHits = metrics.counter("diskHits");
+    private final LongAdder misses = metrics.counter("misses");
+    private final LongAdder spills = metrics.counter("spills");
+    private final LongAdder evictions = metrics.counter("evictions");
+    private final LongAdder promotions = metrics.counter("promotions");
+    private final LatencyHistogram lazyWaitLatency = metrics.histogram("lazyWait");
+    private final LatencyHistogram loadLatency = metrics.histogram("loadFromFile");
+    private final LatencyHistogram saveLatency = metrics.histogram("saveToFile");
+    private final LatencyHistogram syncLatency = metrics.histogram("syncFiles");
+    private final SlabAllocator slabAllocator;
+    private final boolean deduplication;
+    //сколько id сохраняется за раз
+    private static final int ID_BLOCK = 4096;
+    //хэш содержимого -> общие данные
+    private final Map<ByteBuffer, SharedContent> contents = new ConcurrentHashMap<>();
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
 
     /**
      * По умолчанию лимит памяти 100 Мб
@@ -34,58 +115,698 @@ public abstract class ImageCache {
     }
 
     public ImageCache(int memoryLimit) {
-        this.memoryLimit = memoryLimit;
-        this.cache = new ConcurrentHashMap<>();
+        this(new ImageCacheConfig().memoryLimit(memoryLimit));
+    }
+
+    public ImageCache(int memoryLimit, EvictionPolicy evictionPolicy) {
+        this(new ImageCacheConfig().memoryLimit(memoryLimit).evictionPolicy(evictionPolicy));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ImageCache(ImageCacheConfig config) {
+        this.memoryLimit = config.getMemoryLimit();
+        this.evictionPolicy = config.getEvictionPolicy();
+        this.promotionThreshold = config.getPromotionThreshold();
+        this.slabAllocator = config.getStorageMode() == StorageMode.OFF_HEAP
+                ? new SlabAllocator(memoryLimit, Math.min(memoryLimit, config.getSlabSize()))
+                : null;
+        this.deduplication = config.isDeduplication();
+        this.cache = new IntConcurrentMap<>();
         this.memoryUsage = new AtomicInteger();
         this.ids = new AtomicInteger();
-        this.executorService = Executors.newSingleThreadExecutor();
+        int shards = config.getSpillShards();
+        this.writeBehindQueues = new WriteBehindQueue[shards];
+        this.readExecutorServices = new ExecutorService[shards];
+        for (int i = 0; i < shards; i++) {
+            writeBehindQueues[i] = new WriteBehindQueue<>("image-cache-writer-" + i, config.getSpillQueueCapacity(),
+                    config.getSpillBatchSize(), config.getSpillBackpressure(), this::saveOnCaller, this::saveBatch);
+            readExecutorServices[i] = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / shards));
+        }
+        metrics.gauge("memoryUsage", memoryUsage::get);
+        metrics.gauge("spillQueueSize", this::getSpillQueueSize);
+        metrics.gauge("entries", cache::size);
     }
 
     //------------Публичное API-----------------//
 
     public int putToCache(byte[] data) {
-        int id = ids.incrementAndGet();
-        if (isFitToMemory(data.length)) {
-            cache.put(id, new MemoryData(data));
-        } else {
-            String filename = filename(id);
-            LazyData lazyData = createLazyData(filename);
-            cache.put(id, lazyData);
-            asyncSaveToFile(data, filename, lazyData::activate);
+        if (deduplication) {
+            return putShared(data);
         }
+        int id = nextId();
+        store(id, data);
         return id;
     }
 
+    public int putToCache(InputStream in, long length) throws IOException {
+        return putToCache(Channels.newChannel(in), length);
+    }
+
+    /**
+     * Кладем в кэш length байт из канала. Если данные помещаются в память (память резервируется так же, как и для
+     * массива), они читаются сразу в память. Иначе данные пишутся на диск кусками через
+     * {@link #saveToFile(String, ReadableByteChannel, long)} в вызывающем потоке, не занимая места в очереди записи,
+     * а синхронизирует их с диском поток записи шарда со своей пачкой. До этого чтение записи ждет, как и при обычном
+     * сбросе на диск. Дедупликация к таким данным не применяется.
+     *
+     * @throws EOFException если канал закончился раньше, чем прочитано length байт
+     */
+    public int putToCache(ReadableByteChannel source, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported length: " + length);
+        }
+        int size = (int) length;
+        int id = nextId();
+        evictionPolicy.onAccess(id);
+        ResidentData resident = toMemory(id, source, size);
+        if (resident != null) {
+            cache.put(id, resident);
+            evictionPolicy.onAdd(id);
+            return id;
+        }
+        String filename = filename(id);
+        LazyData lazyData = createLazyData(id, filename);
+        Lock lock = ioLocks.get(id).writeLock();
+        lock.lock();
+        long start = System.nanoTime();
+        try {
+            saveToFile(filename, source, size);
+        } finally {
+            lock.unlock();
+        }
+        saveLatency.recordSince(start);
+        spills.increment();
+        cache.put(id, lazyData);
+        PendingWrite write = new PendingWrite(id, filename, null, lazyData);
+        write.written = true;
+        writeBehindQueues[shardOf(id)].submitWritten(write);
+        return id;
+    }
 
     public byte[] getFromCache(int id) {
-        return cache.containsKey(id) ? cache.get(id).getData() : null;
+        Data data = lookup(id);
+        if (data == null) {
+            misses.increment();
+            return null;
+        }
+        if (data instanceof SharedContent) {
+            return getFromCache(((SharedContent) data).getStorageId());
+        }
+        evictionPolicy.onAccess(id);
+        recordHit(data);
+        byte[] bytes = data instanceof LazyData
+                ? awaitActive((LazyData) data) ? data.getData() : null
+                : data.getData();
+        if (bytes == null && data instanceof ResidentData) {
+            //запись только что вытеснили или удалили, смотрим что теперь лежит в кэше
+            return getFromCache(id);
+        }
+        if (data instanceof LazyData && bytes != null) {
+            promoteIfHot(id, (LazyData) data, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Неблокирующий вариант {@link #getFromCache(int)}. Данные из памяти отдаются сразу, чтение с диска выполняется
+     * в отдельном пуле после того, как данные запишутся на диск.
+     */
+    public CompletableFuture<byte[]> getFromCacheAsync(int id) {
+        Data data = lookup(id);
+        if (data == null) {
+            misses.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        if (data instanceof SharedContent) {
+            return getFromCacheAsync(((SharedContent) data).getStorageId());
+        }
+        evictionPolicy.onAccess(id);
+        if (data instanceof ResidentData) {
+            return CompletableFuture.completedFuture(getFromCache(id));
+        }
+        recordHit(data);
+        CompletableFuture<byte[]> future = data.getDataAsync(readExecutorServices[shardOf(id)]);
+        if (data instanceof LazyData) {
+            future.thenAccept(bytes -> {
+                if (bytes != null) {
+                    promoteIfHot(id, (LazyData) data, bytes);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Read-only представление данных без лишнего копирования. Данные в куче оборачиваются, данные с диска отображаются
+     * в память, если наследник это поддерживает (см. {@link #mapFile(String)}). Данные вне кучи копируются, т.к. блок
+     * после вытеснения может достаться другим данным.
+     */
+    public ByteBuffer getFromCacheAsBuffer(int id) {
+        Data data = lookup(id);
+        if (data == null) {
+            misses.increment();
+            return null;
+        }
+        if (data instanceof SharedContent) {
+            return getFromCacheAsBuffer(((SharedContent) data).getStorageId());
+        }
+        evictionPolicy.onAccess(id);
+        recordHit(data);
+        if (data instanceof ResidentData) {
+            ByteBuffer buffer = ((ResidentData) data).asBuffer();
+            return buffer != null ? buffer : getFromCacheAsBuffer(id);
+        }
+        if (!(data instanceof LazyData)) {
+            byte[] bytes = data.getData();
+            return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        LazyData lazyData = (LazyData) data;
+        if (!awaitActive(lazyData)) {
+            return null;
+        }
+        ByteBuffer buffer = underReadLock(id, () -> mapFile(filename(id)));
+        promoteIfHot(id, lazyData, null);
+        return buffer;
+    }
+
+    /**
+     * Потоковое чтение данных, построено на {@link #getFromCacheAsBuffer(int)}: данные с диска не копируются в кучу
+     * целиком, если наследник отображает файлы в память.
+     *
+     * @return поток или null, если данных нет
+     */
+    public InputStream getFromCacheAsStream(int id) {
+        ByteBuffer buffer = getFromCacheAsBuffer(id);
+        return buffer == null ? null : new ByteBufferInputStream(buffer);
+    }
+
+    /**
+     * Пишем данные в канал без промежуточного массива в куче. Данные с диска передаются через
+     * {@link #transferFile(String, WritableByteChannel)} (например {@link java.nio.channels.FileChannel#transferTo}).
+     *
+     * @return сколько байт записано или -1, если данных нет
+     */
+    public long transferTo(int id, WritableByteChannel target) throws IOException {
+        Data data = lookup(id);
+        if (data == null) {
+            misses.increment();
+            return -1;
+        }
+        if (data instanceof SharedContent) {
+            return transferTo(((SharedContent) data).getStorageId(), target);
+        }
+        evictionPolicy.onAccess(id);
+        recordHit(data);
+        if (data instanceof ResidentData) {
+            long written = ((ResidentData) data).transferTo(target);
+            return written >= 0 ? written : transferTo(id, target);
+        }
+        if (!(data instanceof LazyData)) {
+            byte[] bytes = data.getData();
+            return bytes == null ? -1 : writeFully(ByteBuffer.wrap(bytes), target);
+        }
+        LazyData lazyData = (LazyData) data;
+        if (!awaitActive(lazyData)) {
+            return -1;
+        }
+        Lock lock = ioLocks.get(id).readLock();
+        lock.lock();
+        long written;
+        try {
+            written = transferFile(filename(id), target);
+        } finally {
+            lock.unlock();
+        }
+        promoteIfHot(id, lazyData, null);
+        return written;
+    }
+
+    /**
+     * Удаляем запись из кэша, освобождая память или файл. Файл удаляется после того, как запись на диск завершится.
+     *
+     * @return false если записи с таким id нет
+     */
+    public boolean removeFromCache(int id) {
+        Data data = lookup(id);
+        if (data instanceof SharedContent) {
+            SharedContent shared = (SharedContent) data;
+            if (!cache.remove(id, shared)) {
+                return false;
+            }
+            if (shared.release()) {
+                contents.remove(shared.getKey(), shared);
+                removeEntry(shared.getStorageId());
+            }
+            return true;
+        }
+        return removeEntry(id);
+    }
+
+    /**
+     * Метрики кэша: попадания в память и на диск, промахи, сбросы на диск, вытеснения, подъемы в память, задержки
+     * ожидания записи и работы с файлами. Наследники могут регистрировать свои метрики.
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Сколько байт данных лежит в памяти (одинаковые данные в режиме дедупликации учитываются один раз)
+     */
+    public int getMemoryUsage() {
+        return memoryUsage.get();
+    }
+
+    /**
+     * Сколько раз записи поднимались с диска обратно в память
+     */
+    public long getPromotionCount() {
+        return promotions.sum();
+    }
+
+    /**
+     * Сколько записей ждут сохранения на диск
+     */
+    public int getSpillQueueSize() {
+        int size = 0;
+        for (WriteBehindQueue<PendingWrite> queue : writeBehindQueues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * Дописываем на диск все, что стоит в очереди, и останавливаем потоки кэша
+     */
+    @Override
+    public void close() {
+        for (WriteBehindQueue<PendingWrite> queue : writeBehindQueues) {
+            queue.close();
+        }
+        for (ExecutorService executorService : readExecutorServices) {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * Аллокатор памяти вне кучи (статистика фрагментации и занятой памяти), null если хранение в куче
+     */
+    public SlabAllocator getSlabAllocator() {
+        return slabAllocator;
     }
 
     //---------------------UTIL---------------------------//
 
+    private int nextId() {
+        int id = ids.incrementAndGet();
+        if (id > persistedIds) {
+            reserveIds(id);
+        }
+        return id;
+    }
+
+    //Сохраняем следующий блок id до того, как выдать id из него
+    private void reserveIds(int id) {
+        synchronized (ids) {
+            if (id > persistedIds) {
+                int limit = id + ID_BLOCK - 1;
+                persistIds(limit);
+                persistedIds = limit;
+            }
+        }
+    }
+
+    //Запись из кэша, а после перезапуска - и оставшаяся на диске запись, которую еще не запрашивали
+    private Data lookup(int id) {
+        Data data = cache.get(id);
+        if (data != null || !resumed) {
+            return data;
+        }
+        String filename = filename(id);
+        if (!underReadLock(id, () -> fileExists(filename))) {
+            return null;
+        }
+        LazyData lazyData = createLazyData(id, filename);
+        lazyData.activate();
+        Data current = cache.putIfAbsent(id, lazyData);
+        return current != null ? current : lazyData;
+    }
+
+    //Размещаем данные под id в памяти или на диске
+    private void store(int id, byte[] data) {
+        evictionPolicy.onAccess(id);
+        ResidentData resident = toMemory(id, data, false);
+        if (resident != null) {
+            cache.put(id, resident);
+            evictionPolicy.onAdd(id);
+        } else {
+            spillToFile(id, data);
+        }
+    }
+
+    //Дедупликация: если такие данные уже есть, выдаем новый id, ссылающийся на них
+    private int putShared(byte[] data) {
+        ByteBuffer key = ByteBuffer.wrap(DIGEST.get().digest(data));
+        while (true) {
+            SharedContent shared = contents.get(key);
+            if (shared != null) {
+                if (shared.retain()) {
+                    return putReference(shared);
+                }
+                //последнюю ссылку только что отпустили, данные удаляются - помогаем убрать их из индекса
+                contents.remove(key, shared);
+                continue;
+            }
+            int storageId = nextId();
+            store(storageId, data);
+            shared = new SharedContent(key, storageId, this::getFromCache);
+            if (contents.putIfAbsent(key, shared) == null) {
+                return putReference(shared);
+            }
+            //такие же данные параллельно положил другой поток
+            removeEntry(storageId);
+        }
+    }
+
+    private int putReference(SharedContent shared) {
+        int id = nextId();
+        cache.put(id, shared);
+        return id;
+    }
+
+    private boolean removeEntry(int id) {
+        Data data = cache.remove(id);
+        if (data == null) {
+            return false;
+        }
+        evictionPolicy.onRemove(id);
+        if (data instanceof ResidentData) {
+            ResidentData resident = (ResidentData) data;
+            resident.release();
+            memoryUsage.addAndGet(-resident.size());
+            if (resident.hasFile()) {
+                deleteFileLocked(id, filename(id));
+            }
+        } else if (data instanceof LazyData) {
+            String filename = filename(id);
+            ((LazyData) data).whenActive(() -> deleteFileLocked(id, filename));
+        }
+        return true;
+    }
+
+    //Размещаем данные в памяти (в куче или вне ее). null - данные не поместились, их нужно сбрасывать на диск.
+    private ResidentData toMemory(int id, byte[] data, boolean hasFile) {
+        if (!reserveMemory(id, data.length)) {
+            return null;
+        }
+        if (slabAllocator == null) {
+            return new MemoryData(data, hasFile);
+        }
+        SlabAllocator.Block block = allocateBlock(id, data.length);
+        if (block == null) {
+            return null;
+        }
+        block.write(data);
+        return new OffHeapData(slabAllocator, block, hasFile);
+    }
 
-    private LazyData createLazyData(String filename) {
-        return new LazyData(() -> {
+    //То же для данных из канала: читаем их сразу в массив или в блок вне кучи
+    private ResidentData toMemory(int id, ReadableByteChannel source, int length) throws IOException {
+        if (!reserveMemory(id, length)) {
+            return null;
+        }
+        if (slabAllocator == null) {
+            byte[] data = new byte[length];
             try {
-                lock.lock();
-                return loadFromFile(filename);
-            } finally {
-                lock.unlock();
+                readFully(source, ByteBuffer.wrap(data));
+            } catch (IOException | RuntimeException e) {
+                memoryUsage.addAndGet(-length);
+                throw e;
+            }
+            return new MemoryData(data, false);
+        }
+        SlabAllocator.Block block = allocateBlock(id, length);
+        if (block == null) {
+            return null;
+        }
+        try {
+            block.readFrom(source);
+        } catch (IOException | RuntimeException e) {
+            slabAllocator.free(block);
+            memoryUsage.addAndGet(-length);
+            throw e;
+        }
+        return new OffHeapData(slabAllocator, block, false);
+    }
+
+    //Выделяем блок вне кучи под уже зарезервированную память. null - блока нет, резерв снят.
+    private SlabAllocator.Block allocateBlock(int id, int length) {
+        SlabAllocator.Block block;
+        try {
+            block = slabAllocator.allocate(length);
+            //память по счетчику есть, но в слабах нет подходящего свободного участка: вытесняем еще
+            while (block == null && evictOne(id)) {
+                block = slabAllocator.allocate(length);
+            }
+        } catch (SpillQueueFullException e) {
+            memoryUsage.addAndGet(-length);
+            throw e;
+        }
+        if (block == null) {
+            memoryUsage.addAndGet(-length);
+        }
+        return block;
+    }
+
+    //Резервируем память под данные, при необходимости вытесняя холодные записи на диск
+    private boolean reserveMemory(int id, int dataLength) {
+        if (slabAllocator != null && dataLength > slabAllocator.getSlabSize()) {
+            return false;
+        }
+        if (isFitToMemory(dataLength)) {
+            return true;
+        }
+        if (dataLength > memoryLimit) {
+            return false;
+        }
+        while (!isFitToMemory(dataLength)) {
+            if (!evictOne(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Вытесняем одну запись ради candidateId. false - вытеснять нечего или политика против.
+    private boolean evictOne(int candidateId) {
+        evictionLock.lock();
+        try {
+            int victim = evictionPolicy.victim();
+            if (victim == EvictionPolicy.NO_VICTIM || !evictionPolicy.admit(candidateId, victim)) {
+                return false;
+            }
+            demote(victim);
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    //Переносим запись из памяти на диск. Память освобождает тот, кто успешно убрал запись из кэша.
+    private void demote(int id) {
+        Data data = cache.get(id);
+        if (!(data instanceof ResidentData)) {
+            evictionPolicy.onRemove(id);
+            return;
+        }
+        ResidentData resident = (ResidentData) data;
+        String filename = filename(id);
+        LazyData lazyData = createLazyData(id, filename);
+        if (resident.hasFile()) {
+            //файл остался с прошлого раза
+            evictions.increment();
+            evictionPolicy.onRemove(id);
+            lazyData.activate();
+            if (cache.replace(id, data, lazyData)) {
+                resident.release();
+                memoryUsage.addAndGet(-resident.size());
+            }
+            return;
+        }
+        //данные читаем до замены: после нее блок вне кучи может быть освобожден. В очередь ставим тоже до замены,
+        //а из политики убираем после: при заполненной очереди (FAIL_FAST) запись остается в памяти и в политике.
+        byte[] bytes = resident.getData();
+        asyncSaveToFile(id, bytes, filename, lazyData);
+        evictions.increment();
+        evictionPolicy.onRemove(id);
+        if (cache.replace(id, data, lazyData)) {
+            resident.release();
+            memoryUsage.addAndGet(-resident.size());
+        } else {
+            //запись удалили, пока мы ее вытесняли
+            lazyData.whenActive(() -> deleteFileLocked(id, filename));
+        }
+    }
+
+    //Поднимаем запись с диска в память, если ее прочитали promotionThreshold раз и политика вытеснения не против.
+    //bytes == null - данные читались без копирования в кучу, загружаем их отдельно.
+    private void promoteIfHot(int id, LazyData lazyData, byte[] bytes) {
+        if (lazyData.incrementReads() < promotionThreshold) {
+            return;
+        }
+        if (bytes == null && (bytes = lazyData.getData()) == null) {
+            return;
+        }
+        ResidentData resident;
+        try {
+            resident = toMemory(id, bytes, true);
+        } catch (SpillQueueFullException e) {
+            //подъем в память - оптимизация, чтение из-за нее падать не должно
+            return;
+        }
+        if (resident == null) {
+            return;
+        }
+        if (cache.replace(id, lazyData, resident)) {
+            evictionPolicy.onAdd(id);
+            promotions.increment();
+        } else {
+            resident.release();
+            memoryUsage.addAndGet(-bytes.length);
+        }
+    }
+
+    private void spillToFile(int id, byte[] data) {
+        String filename = filename(id);
+        LazyData lazyData = createLazyData(id, filename);
+        asyncSaveToFile(id, data, filename, lazyData);
+        cache.put(id, lazyData);
+    }
+
+    private LazyData createLazyData(int id, String filename) {
+        return new LazyData(() -> underReadLock(id, () -> {
+            long start = System.nanoTime();
+            byte[] data = loadFromFile(filename);
+            loadLatency.recordSince(start);
+            return data;
+        }));
+    }
+
+    private <T> T underReadLock(int id, Supplier<T> action) {
+        Lock lock = ioLocks.get(id).readLock();
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static long writeFully(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer);
+        }
+        return written;
+    }
+
+    static void readFully(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                throw new EOFException(buffer.remaining() + " bytes missing");
             }
-        });
+        }
+    }
+
+    //Асинхронное сохранение данных в файл. После сохранения lazyData активируется (или помечается как сбойная).
+    private void asyncSaveToFile(int id, byte[] data, String filename, LazyData lazyData) {
+        writeBehindQueues[shardOf(id)].submit(new PendingWrite(id, filename, data, lazyData));
+        spills.increment();
     }
 
-    //Асинхронное сохранение данных в файл. После успешного сохранения происходит вызов finalCallback.
-    private void asyncSaveToFile(byte[] data, String filename, Runnable finalCallback) {
-        executorService.submit(() -> {
+    //Пишем пачку файлов, один раз синхронизируем их с диском и только после этого открываем к ним доступ. Файлы,
+    //записанные вызывающими потоками, только синхронизируем.
+    private void saveBatch(List<PendingWrite> batch) {
+        List<PendingWrite> saved = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            if (write.written) {
+                saved.add(write);
+                continue;
+            }
+            Lock lock = ioLocks.get(write.id).writeLock();
+            lock.lock();
+            long start = System.nanoTime();
             try {
-                lock.lock();
-                saveToFile(filename, data);
-                finalCallback.run();
+                saveToFile(write.filename, write.data);
+                saveLatency.recordSince(start);
+                saved.add(write);
+            } catch (RuntimeException e) {
+                write.lazyData.fail(e);
             } finally {
                 lock.unlock();
             }
-        });
+        }
+        try {
+            timedSyncFiles(shardOf(batch.get(0).id));
+        } catch (RuntimeException e) {
+            for (PendingWrite write : saved) {
+                write.lazyData.fail(e);
+            }
+            throw e;
+        }
+        for (PendingWrite write : saved) {
+            write.lazyData.activate();
+        }
+    }
+
+    //Очередь шарда заполнена (CALLER_RUNS): пишем файл сами, синхронизирует его поток записи. false - запись упала.
+    private boolean saveOnCaller(PendingWrite write) {
+        Lock lock = ioLocks.get(write.id).writeLock();
+        lock.lock();
+        long start = System.nanoTime();
+        try {
+            saveToFile(write.filename, write.data);
+            saveLatency.recordSince(start);
+            write.written = true;
+            return true;
+        } catch (RuntimeException e) {
+            write.lazyData.fail(e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void timedSyncFiles(int shard) {
+        long start = System.nanoTime();
+        syncFiles(shard);
+        syncLatency.recordSince(start);
+    }
+
+    private void recordHit(Data data) {
+        if (data instanceof ResidentData) {
+            memoryHits.increment();
+        } else {
+            diskHits.increment();
+        }
+    }
+
+    //Ожидание записи данных на диск
+    private boolean awaitActive(LazyData lazyData) {
+        long start = System.nanoTime();
+        boolean active = lazyData.awaitActive();
+        lazyWaitLatency.recordSince(start);
+        return active;
+    }
+
+    private void deleteFileLocked(int id, String filename) {
+        Lock lock = ioLocks.get(id).writeLock();
+        lock.lock();
+        try {
+            deleteFile(filename);
+        } finally {
+            lock.unlock();
+        }
     }
 
     private static String filename(Integer id) {
@@ -106,11 +827,112 @@ public abstract class ImageCache {
     }
 
 
+    /**
+     * Шард диска, на который попадает id. Записи одного шарда синхронизирует с диском один поток, {@link #syncFiles(int)}
+     * вызывается только из него. Пишет файлы тоже он, кроме данных из потока и записей при {@link SpillBackpressure#CALLER_RUNS}.
+     */
+    protected final int shardOf(int id) {
+        int h = id * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % writeBehindQueues.length;
+    }
+
+    /**
+     * Продолжаем работу после перезапуска: новые id выдаются после lastId, а файлы, оставшиеся на диске, подхватываются
+     * при первом обращении к их id (см. {@link #fileExists(String)}). Вызывается наследником из конструктора.
+     */
+    protected final void resume(int lastId) {
+        ids.accumulateAndGet(lastId, Math::max);
+        persistedIds = Math.max(persistedIds, lastId);
+        resumed = true;
+    }
+
+
     //----------Работа с файлами--------------------//
 
     protected abstract byte[] loadFromFile(String filename);
 
     protected abstract void saveToFile(String filename, byte[] data);
 
-}
+    /**
+     * Удаляем файл удаленной из кэша записи. По умолчанию файл остается на диске.
+     */
+    protected void deleteFile(String filename) {
+    }
+
+    /**
+     * Сохраняем length байт из канала. По умолчанию данные читаются целиком и передаются в
+     * {@link #saveToFile(String, byte[])}, наследники могут писать их кусками.
+     *
+     * @throws EOFException если канал закончился раньше, чем прочитано length байт
+     */
+    protected void saveToFile(String filename, ReadableByteChannel source, long length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        readFully(source, data);
+        saveToFile(filename, data.array());
+    }
+
+    /**
+     * Есть ли файл, оставшийся с прошлого запуска. Вызывается только после {@link #resume(int)}, по умолчанию false.
+     */
+    protected boolean fileExists(String filename) {
+        return false;
+    }
+
+    /**
+     * Сохраняем, что выданы id до lastId включительно, чтобы после перезапуска они не выдавались повторно. Вызывается
+     * до выдачи id, раз на блок id. По умолчанию ничего не делает.
+     */
+    protected void persistIds(int lastId) {
+    }
+
+    /**
+     * Синхронизация записанных файлов с диском (fsync), вызывается из {@link #syncFiles(int)}. По умолчанию ничего не делает.
+     */
+    protected void syncFiles() {
+    }
+
+    /**
+     * Синхронизация файлов шарда, вызывается из потока записи шарда один раз на пачку. По умолчанию {@link #syncFiles()}.
+     */
+    protected void syncFiles(int shard) {
+        syncFiles();
+    }
+
+    /**
+     * Read-only представление содержимого файла. По умолчанию файл читается целиком, наследники могут отображать файл в память.
+     */
+    protected ByteBuffer mapFile(String filename) {
+        byte[] data = loadFromFile(filename);
+        return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * Пишем содержимое файла в канал. По умолчанию через {@link #mapFile(String)}, наследники могут использовать
+     * {@link java.nio.channels.FileChannel#transferTo}.
+     *
+     * @return сколько байт записано или -1, если файла нет
+     */
+    protected long transferFile(String filename, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = mapFile(filename);
+        return buffer == null ? -1 : writeFully(buffer, target);
+    }
+
+
+    private static class PendingWrite {
+
+        private final int id;
+        private final String filename;
+        private final byte[] data;
+        private final LazyData lazyData;
+        //файл уже записал вызывающий поток, осталось синхронизировать. Публикуется через очередь записи
+        private boolean written;
 
+        private PendingWrite(int id, String filename, byte[] data, LazyData lazyData) {
+            this.id = id;
+            this.filename = filename;
+            this.data = data;
+            this.lazyData = lazyData;
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package cache;
+
+/**
+ * Настройки {@link ImageCache}
+ *
+ * @author Perekhod Oleg
+ */
+public class ImageCacheConfig {
+
+    private int memoryLimit = 100 * 1024 * 1024;
+    private EvictionPolicy evictionPolicy;
+    private int promotionThreshold = 2;
+    private StorageMode storageMode = StorageMode.HEAP;
+    private int slabSize = 16 * 1024 * 1024;
+    private int spillQueueCapacity = 1024;
+    private int spillBatchSize = 64;
+    private SpillBackpressure spillBackpressure = SpillBackpressure.BLOCK;
+    private boolean deduplication;
+    private boolean persistent;
+    private int spillShards = 1;
+
+    /**
+     * Лимит памяти в байтах, по умолчанию 100 Мб
+     */
+    public ImageCacheConfig memoryLimit(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+        return this;
+    }
+
+    /**
+     * Политика вытеснения, по умолчанию {@link LruPolicy}. Политика хранит состояние, поэтому у каждого кэша должна быть своя
+     */
+    public ImageCacheConfig evictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        return this;
+    }
+
+    /**
+     * После скольких чтений с диска запись поднимается обратно в память, по умолчанию 2
+     */
+    public ImageCacheConfig promotionThreshold(int promotionThreshold) {
+        this.promotionThreshold = promotionThreshold;
+        return this;
+    }
+
+    /**
+     * Где хранить данные, помещающиеся в память, по умолчанию {@link StorageMode#HEAP}
+     */
+    public ImageCacheConfig storageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+        return this;
+    }
+
+    /**
+     * Размер слаба для {@link StorageMode#OFF_HEAP}, по умолчанию 16 Мб. Данные больше слаба сразу уходят на диск
+     */
+    public ImageCacheConfig slabSize(int slabSize) {
+        this.slabSize = slabSize;
+        return this;
+    }
+
+    /**
+     * Сколько записей может ждать сохранения на диск, по умолчанию 1024
+     */
+    public ImageCacheConfig spillQueueCapacity(int spillQueueCapacity) {
+        this.spillQueueCapacity = spillQueueCapacity;
+        return this;
+    }
+
+    /**
+     * Максимальный размер пачки записей на один fsync, по умолчанию 64
+     */
+    public ImageCacheConfig spillBatchSize(int spillBatchSize) {
+        this.spillBatchSize = spillBatchSize;
+        return this;
+    }
+
+    /**
+     * Что делать при заполненной очереди записи, по умолчанию {@link SpillBackpressure#BLOCK}
+     */
+    public ImageCacheConfig spillBackpressure(SpillBackpressure spillBackpressure) {
+        this.spillBackpressure = spillBackpressure;
+        return this;
+    }
+
+    /**
+     * Хранить одинаковые данные один раз, по умолчанию выключено
+     */
+    public ImageCacheConfig deduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+        return this;
+    }
+
+    /**
+     * Сохранять данные на диске между перезапусками, если наследник {@link ImageCache} это поддерживает (например
+     * {@link SegmentedLogImageCache}). По умолчанию выключено
+     */
+    public ImageCacheConfig persistent(boolean persistent) {
+        this.persistent = persistent;
+        return this;
+    }
+
+    /**
+     * На сколько шардов разбит диск, по умолчанию 1. У каждого шарда своя очередь записи (spillQueueCapacity на шард)
+     * с отдельным потоком и свой пул чтения
+     */
+    public ImageCacheConfig spillShards(int spillShards) {
+        if (spillShards < 1) {
+            throw new IllegalArgumentException("spillShards must be positive: " + spillShards);
+        }
+        this.spillShards = spillShards;
+        return this;
+    }
+
+    /**
+     * Копия настроек: кэш, которому нужно поменять настройку, не меняет объект вызывающего
+     */
+    ImageCacheConfig copy() {
+        ImageCacheConfig copy = new ImageCacheConfig();
+        copy.memoryLimit = memoryLimit;
+        copy.evictionPolicy = evictionPolicy;
+        copy.promotionThreshold = promotionThreshold;
+        copy.storageMode = storageMode;
+        copy.slabSize = slabSize;
+        copy.spillQueueCapacity = spillQueueCapacity;
+        copy.spillBatchSize = spillBatchSize;
+        copy.spillBackpressure = spillBackpressure;
+        copy.deduplication = deduplication;
+        copy.persistent = persistent;
+        copy.spillShards = spillShards;
+        return copy;
+    }
+
+    public int getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy != null ? evictionPolicy : new LruPolicy();
+    }
+
+    public int getPromotionThreshold() {
+        return promotionThreshold;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public int getSpillQueueCapacity() {
+        return spillQueueCapacity;
+    }
+
+    public int getSpillBatchSize() {
+        return spillBatchSize;
+    }
+
+    public SpillBackpressure getSpillBackpressure() {
+        return spillBackpressure;
+    }
+
+    public boolean isDeduplication() {
+        return deduplication;
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    public int getSpillShards() {
+        return spillShards;
+    }
+
+}
@@ -0,0 +1,258 @@
+package cache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Журнал индекса {@link SegmentedLogImageCache}, по которому индекс восстанавливается после перезапуска. Каждое
+ * изменение индекса - запись фиксированного размера [id, номер сегмента, смещение, длина]. Номер сегмента
+ * {@link #REMOVED} означает удаление id, {@link #IDS} - что выданы id до указанного включительно.
+ * <p>
+ * Изменения копятся в памяти и пишутся на диск в {@link #commit(Runnable)} после fsync сегментов, поэтому журнал
+ * не ссылается на данные, которых еще нет на диске. Когда устаревших записей становится заметно больше, чем живых,
+ * журнал переписывается снимком индекса (через временный файл и атомарное переименование). Снимок берется под
+ * блокировкой на журнале: под ней же вызывающий меняет индекс и добавляет запись, чтобы изменение было атомарным.
+ *
+ * @author Perekhod Oleg
+ */
+class IndexJournal {
+
+    static final int RECORD_SIZE = 20;
+    private static final int REMOVED = 0;
+    private static final int IDS = -1;
+    //меньше этого журнал не переписываем
+    private static final int MIN_REWRITE_RECORDS = 1024;
+
+    private final Path path;
+    private FileChannel channel;
+    //записи, ждущие commit. Под блокировкой на this
+    private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+    //запись на диск (commit, ids, rewrite) идет в один поток, чтобы записи не перемешались
+    private final Object commitLock = new Object();
+    private long records;
+    private int lastId;
+
+    IndexJournal(Path path) {
+        this.path = path;
+        this.channel = open(path);
+    }
+
+    /**
+     * Проигрываем журнал с начала. Недописанная при падении последняя запись отбрасывается.
+     */
+    void replay(Visitor visitor) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_SIZE);
+        long readPosition = 0;
+        long position = 0;
+        try {
+            int read;
+            while ((read = channel.read(buffer, readPosition)) > 0) {
+                readPosition += read;
+                ((Buffer) buffer).flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    apply(buffer, visitor);
+                    position += RECORD_SIZE;
+                }
+                buffer.compact();
+            }
+            records = position / RECORD_SIZE;
+            channel.truncate(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void put(int id, int segment, long offset, int length) {
+        append(pending(), id, segment, offset, length);
+    }
+
+    synchronized void remove(int id) {
+        append(pending(), id, REMOVED, 0, 0);
+    }
+
+    /**
+     * Сразу пишем на диск, что выданы id до lastId включительно
+     */
+    void ids(int lastId) {
+        synchronized (commitLock) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            append(record, lastId, IDS, 0, 0);
+            write(record);
+            this.lastId = Math.max(this.lastId, lastId);
+        }
+    }
+
+    /**
+     * Пишем накопленные изменения. syncData выполняется до записи и должен синхронизировать с диском данные, на которые
+     * они ссылаются.
+     */
+    void commit(Runnable syncData) {
+        synchronized (commitLock) {
+            ByteBuffer batch;
+            synchronized (this) {
+                batch = pending;
+                pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+            }
+            syncData.run();
+            if (batch.position() > 0) {
+                ((Buffer) batch).flip();
+                write(batch);
+            }
+        }
+    }
+
+    /**
+     * Пора ли переписать журнал, если в индексе liveEntries записей
+     */
+    boolean isBloated(int liveEntries) {
+        synchronized (commitLock) {
+            return records > MIN_REWRITE_RECORDS && records > 2L * liveEntries;
+        }
+    }
+
+    /**
+     * Заменяем журнал снимком индекса. Изменения индекса должны попадать в журнал после того, как применены к индексу:
+     * тогда все накопленные изменения уже есть в снимке. syncData выполняется после снимка до записи нового журнала.
+     */
+    void rewrite(Snapshot snapshot, Runnable syncData) {
+        synchronized (commitLock) {
+            ByteBuffer[] buffer = {ByteBuffer.allocate(1024 * RECORD_SIZE)};
+            synchronized (this) {
+                ((Buffer) pending).clear();
+                snapshot.writeTo((id, segment, offset, length) -> {
+                    if (buffer[0].remaining() < RECORD_SIZE) {
+                        buffer[0] = grow(buffer[0]);
+                    }
+                    append(buffer[0], id, segment, offset, length);
+                });
+            }
+            syncData.run();
+            if (buffer[0].remaining() < RECORD_SIZE) {
+                buffer[0] = grow(buffer[0]);
+            }
+            append(buffer[0], lastId, IDS, 0, 0);
+            ((Buffer) buffer[0]).flip();
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try {
+                FileChannel tmpChannel = open(tmp);
+                tmpChannel.truncate(0);
+                long written = buffer[0].remaining();
+                writeFully(tmpChannel, buffer[0], 0);
+                tmpChannel.force(false);
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                channel = tmpChannel;
+                records = written / RECORD_SIZE;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    void close() {
+        synchronized (commitLock) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    //---------------------UTIL---------------------------//
+
+    private void apply(ByteBuffer buffer, Visitor visitor) {
+        int id = buffer.getInt();
+        int segment = buffer.getInt();
+        long offset = buffer.getLong();
+        int length = buffer.getInt();
+        if (segment == REMOVED) {
+            visitor.remove(id);
+        } else if (segment == IDS) {
+            lastId = Math.max(lastId, id);
+            visitor.ids(id);
+        } else {
+            visitor.put(id, segment, offset, length);
+        }
+    }
+
+    private ByteBuffer pending() {
+        if (pending.remaining() < RECORD_SIZE) {
+            pending = grow(pending);
+        }
+        return pending;
+    }
+
+    private void write(ByteBuffer buffer) {
+        try {
+            long position = records * RECORD_SIZE;
+            int length = buffer.remaining();
+            writeFully(channel, buffer, position);
+            channel.force(false);
+            records += length / RECORD_SIZE;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void append(ByteBuffer buffer, int id, int segment, long offset, int length) {
+        buffer.putInt(id).putInt(segment).putLong(offset).putInt(length);
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        ((Buffer) buffer).flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static FileChannel open(Path path) {
+        try {
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Получатель живых записей индекса
+     */
+    @FunctionalInterface
+    interface Entries {
+
+        void put(int id, int segment, long offset, int length);
+    }
+
+    /**
+     * Получатель всех записей журнала
+     */
+    interface Visitor extends Entries {
+
+        void remove(int id);
+
+        void ids(int lastId);
+    }
+
+    /**
+     * Снимок индекса: передает все живые записи
+     */
+    @FunctionalInterface
+    interface Snapshot {
+
+        void writeTo(Entries entries);
+    }
+
+}
@@ -0,0 +1,239 @@
+package cache;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Конкурентная хэш-таблица с ключами-примитивами int и открытой адресацией (линейное пробирование).
+ * <p>
+ * Таблица разбита на сегменты. Чтение не берет блокировок и делает один проход по пробам, изменения выполняются под
+ * блокировкой сегмента. Удаленный ключ остается в таблице как "надгробие" (значение null) до ближайшего
+ * перестроения сегмента. Ключ 0 зарезервирован под пустую ячейку.
+ * <p>
+ * В отличие от {@code ConcurrentHashMap<Integer, V>} на запись не тратятся объект Integer и узел списка: только ячейка
+ * int[] и ссылка в массиве значений.
+ *
+ * @author Perekhod Oleg
+ */
+public class IntConcurrentMap<V> {
+
+    private static final int EMPTY = 0;
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    public IntConcurrentMap() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IntConcurrentMap(int concurrencyLevel) {
+        int size = Integer.highestOneBit(Math.max(1, concurrencyLevel - 1) << 1);
+        this.segments = new Segment[size];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    public V get(int key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * @return предыдущее значение или null
+     */
+    public V put(int key, V value) {
+        checkKey(key);
+        Objects.requireNonNull(value);
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    /**
+     * @return текущее значение или null, если значение положено
+     */
+    public V putIfAbsent(int key, V value) {
+        checkKey(key);
+        Objects.requireNonNull(value);
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * @return удаленное значение или null
+     */
+    public V remove(int key) {
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, null, null, false);
+    }
+
+    public boolean remove(int key, V expected) {
+        int hash = hash(key);
+        return expected != null && segmentFor(hash).replace(key, hash, expected, null, true) != null;
+    }
+
+    public boolean replace(int key, V expected, V value) {
+        Objects.requireNonNull(value);
+        int hash = hash(key);
+        return expected != null && segmentFor(hash).replace(key, hash, expected, value, true) != null;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Обходим записи без блокировок. Изменения, сделанные во время обхода, могут быть как видны, так и не видны.
+     */
+    public void forEach(EntryConsumer<V> consumer) {
+        for (Segment<V> segment : segments) {
+            Table<V> table = segment.table;
+            for (int i = 0; i < table.keys.length; i++) {
+                V value = table.values.get(i);
+                if (value != null) {
+                    consumer.accept(table.keys[i], value);
+                }
+            }
+        }
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+    }
+
+    private static void checkKey(int key) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+
+        void accept(int key, V value);
+    }
+
+    private static class Segment<V> {
+
+        private volatile Table<V> table = new Table<>(16);
+        //живые ключи
+        private volatile int size;
+        //занятые ячейки, включая надгробия
+        private int used;
+
+        V get(int key, int hash) {
+            Table<V> table = this.table;
+            int mask = table.keys.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int k = table.keys[i];
+                if (k == key) {
+                    return table.values.get(i);
+                }
+                if (k == EMPTY) {
+                    return null;
+                }
+            }
+        }
+
+        synchronized V put(int key, int hash, V value, boolean onlyIfAbsent) {
+            if ((used + 1) * 2 > table.keys.length) {
+                rehash();
+            }
+            Table<V> table = this.table;
+            int mask = table.keys.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int k = table.keys[i];
+                if (k == key) {
+                    V prev = table.values.get(i);
+                    if (prev == null) {
+                        size++;
+                    } else if (onlyIfAbsent) {
+                        return prev;
+                    }
+                    table.values.set(i, value);
+                    return prev;
+                }
+                if (k == EMPTY) {
+                    //сначала ключ, потом значение: читатель, увидевший ключ без значения, считает что ключа еще нет
+                    table.keys[i] = key;
+                    table.values.set(i, value);
+                    used++;
+                    size++;
+                    return null;
+                }
+            }
+        }
+
+        //Меняем значение (null - удаляем). Если checkExpected, то только если текущее значение равно expected.
+        synchronized V replace(int key, int hash, V expected, V value, boolean checkExpected) {
+            Table<V> table = this.table;
+            int mask = table.keys.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int k = table.keys[i];
+                if (k == key) {
+                    V prev = table.values.get(i);
+                    if (prev == null || checkExpected && !prev.equals(expected)) {
+                        return null;
+                    }
+                    table.values.set(i, value);
+                    if (value == null) {
+                        size--;
+                    }
+                    return prev;
+                }
+                if (k == EMPTY) {
+                    return null;
+                }
+            }
+        }
+
+        //Перестраиваем таблицу без надгробий. Новая таблица публикуется целиком через volatile запись.
+        private void rehash() {
+            Table<V> old = this.table;
+            int capacity = old.keys.length;
+            while (size * 4 >= capacity) {
+                capacity *= 2;
+            }
+            Table<V> table = new Table<>(capacity);
+            int mask = capacity - 1;
+            for (int j = 0; j < old.keys.length; j++) {
+                V value = old.values.get(j);
+                if (value != null) {
+                    int key = old.keys[j];
+                    int i = hash(key) & mask;
+                    while (table.keys[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    table.keys[i] = key;
+                    table.values.set(i, value);
+                }
+            }
+            used = size;
+            this.table = table;
+        }
+    }
+
+    private static class Table<V> {
+
+        private final int[] keys;
+        private final AtomicReferenceArray<V> values;
+
+        private Table(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new AtomicReferenceArray<>(capacity);
+        }
+    }
+
+}
@@ -1,5 +1,11 @@
 package cache;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
@@ -9,8 +15,12 @@ import java.util.function.Supplier;
  */
 public class LazyData implements Data {
 
+    //сколько секунд блокирующее чтение ждет активации
+    private static final long ACTIVATION_TIMEOUT_SECONDS = 5;
+
     private final Supplier<byte[]> supplier;
-    private volatile boolean isActive = false;
+    private final CompletableFuture<Void> activation = new CompletableFuture<>();
+    private final AtomicInteger reads = new AtomicInteger();
 
     public LazyData(Supplier<byte[]> supplier) {
         this.supplier = supplier;
@@ -18,31 +28,62 @@ public class LazyData implements Data {
 
     @Override
     public byte[] getData() {
-        int tries = 500;
-        while (!isActive) {
-            sleep10ms();
-            //если через 5 секунд ожидания так и не удалось получить доступ к файлу, то возращаем null
-            if (tries-- == 0) {
-                return null;
-            }
+        return awaitActive() ? supplier.get() : null;
+    }
+
+    /**
+     * Ждем активации не дольше 5 секунд
+     *
+     * @return false если данные так и не стали доступны (истекло время ожидания или запись упала)
+     */
+    public boolean awaitActive() {
+        try {
+            activation.get(ACTIVATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
-        return supplier.get();
+    }
+
+    /**
+     * Загрузка выполняется на executor сразу после активации, вызывающий поток не блокируется
+     */
+    @Override
+    public CompletableFuture<byte[]> getDataAsync(Executor executor) {
+        return activation.thenApplyAsync(ignored -> supplier.get(), executor);
     }
 
     /**
      * По умолчанию данные не доступны. Нужна ручная активация
      */
     public void activate() {
-        this.isActive = true;
+        activation.complete(null);
     }
 
-    private static void sleep10ms() {
-        try {
-            Thread.sleep(10);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Учитываем очередное чтение с диска
+     *
+     * @return сколько раз данные были прочитаны
+     */
+    public int incrementReads() {
+        return reads.incrementAndGet();
     }
 
+    /**
+     * Выполняем action после успешной активации (сразу, если данные уже активны)
+     */
+    public void whenActive(Runnable action) {
+        activation.thenRun(action);
+    }
+
+    /**
+     * Данные так и не стали доступны (например, запись в файл упала). Ожидающие чтения сразу получают отказ
+     */
+    public void fail(Throwable cause) {
+        activation.completeExceptionally(cause);
+    }
 
 }
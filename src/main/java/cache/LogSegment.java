@@ -0,0 +1,261 @@
+package cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Файл-сегмент журнала {@link SegmentedLogImageCache}. Записи добавляются только в конец: заголовок (id, длина)
+ * и сами данные.
+ * <p>
+ * Добавление идет в два шага: под блокировкой журнала резервируется место в конце сегмента ({@link #reserve(int)}),
+ * затем данные пишутся позиционной записью без блокировки, так что медленный источник не задерживает другие записи.
+ * Заголовок пишется последним. Если запись не удалась, заголовок помечается id = 0, и запись пропускается при чтении сегмента.
+ * <p>
+ * Сегмент живет, пока на него есть ссылки: одна принадлежит журналу, остальные - текущим чтениям. После
+ * {@link #retire()} файл закрывается и удаляется, как только закончатся начатые чтения.
+ *
+ * @author Perekhod Oleg
+ */
+class LogSegment {
+
+    static final int HEADER_SIZE = 8;
+    //id испорченной записи
+    static final int SKIPPED = 0;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final int number;
+    private final Path path;
+    private final FileChannel channel;
+    private volatile long size;
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    //есть записи, не синхронизированные с диском
+    private volatile boolean dirty;
+
+    LogSegment(int number, Path path) {
+        this.number = number;
+        this.path = path;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    AtomicLong getLiveBytes() {
+        return liveBytes;
+    }
+
+    boolean hasPendingWrites() {
+        return pendingWrites.get() > 0;
+    }
+
+    /**
+     * Резервируем место под запись в конце сегмента. Вызывающий отвечает за то, что резервирует только один поток.
+     * После резервирования обязательно вызывается один из методов write.
+     *
+     * @return смещение данных (после заголовка)
+     */
+    long reserve(int length) {
+        long position = size;
+        size = position + HEADER_SIZE + length;
+        pendingWrites.incrementAndGet();
+        return position + HEADER_SIZE;
+    }
+
+    void write(long offset, int id, byte[] data) {
+        try {
+            writeFully(ByteBuffer.wrap(data), offset);
+            completeWrite(offset, id, data.length);
+        } catch (IOException e) {
+            failWrite(offset, data.length);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Переписываем length байт из source кусками, не держа данные в памяти целиком
+     */
+    void write(long offset, int id, ReadableByteChannel source, int length) throws IOException {
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(Math.min(CHUNK_SIZE, Math.max(length, 1)));
+            long written = 0;
+            while (written < length) {
+                ((Buffer) chunk).clear();
+                ((Buffer) chunk).limit((int) Math.min(chunk.capacity(), length - written));
+                while (chunk.hasRemaining()) {
+                    if (source.read(chunk) < 0) {
+                        throw new EOFException("Stream ended after " + (written + chunk.position()) + " of " + length + " bytes");
+                    }
+                }
+                ((Buffer) chunk).flip();
+                writeFully(chunk, offset + written);
+                written += chunk.limit();
+            }
+            completeWrite(offset, id, length);
+        } catch (IOException | RuntimeException e) {
+            failWrite(offset, length);
+            throw e;
+        }
+    }
+
+    private void completeWrite(long offset, int id, int length) throws IOException {
+        writeFully(header(id, length), offset - HEADER_SIZE);
+        liveBytes.addAndGet(length);
+        dirty = true;
+        pendingWrites.decrementAndGet();
+    }
+
+    private void failWrite(long offset, int length) {
+        try {
+            writeFully(header(SKIPPED, length), offset - HEADER_SIZE);
+            dirty = true;
+        } catch (IOException e) {
+            //место все равно потеряно
+        } finally {
+            pendingWrites.decrementAndGet();
+        }
+    }
+
+    private static ByteBuffer header(int id, int length) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(id).putInt(length);
+        ((Buffer) header).flip();
+        return header;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    byte[] read(long offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of segment " + path);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Отображение участка сегмента в память. Отображение остается валидным и после удаления файла.
+     */
+    MappedByteBuffer map(long offset, int length) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    long transferTo(long offset, int length, WritableByteChannel target) throws IOException {
+        long written = 0;
+        while (written < length) {
+            written += channel.transferTo(offset + written, length - written, target);
+        }
+        return written;
+    }
+
+    /**
+     * Заголовок записи по смещению position: [id, длина]
+     */
+    int[] readHeader(long position) {
+        ByteBuffer header = ByteBuffer.wrap(read(position, HEADER_SIZE));
+        return new int[]{header.getInt(), header.getInt()};
+    }
+
+    /**
+     * fsync вне пачки записей. Флаг изменений не сбрасывается: следующая пачка тоже синхронизирует сегмент перед
+     * записью журнала, не полагаясь на параллельный fsync.
+     */
+    void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * fsync, если с прошлого раза были записи
+     */
+    void forceIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            dirty = true;
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    boolean retain() {
+        int prev;
+        do {
+            prev = refs.get();
+            if (prev == 0) {
+                return false;
+            }
+        } while (!refs.compareAndSet(prev, prev + 1));
+        return true;
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            close();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Сегмент больше не нужен журналу
+     */
+    void retire() {
+        release();
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
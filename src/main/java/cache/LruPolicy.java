@@ -0,0 +1,158 @@
+package cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Вытесняем запись, к которой дольше всего не обращались. Новая запись всегда допускается в память.
+ * <p>
+ * Обращения - самая частая операция кэша, поэтому они не берут блокировку: id записывается в кольцевой буфер страйпа
+ * потока, а порядок обновляется пачкой, когда буфер наполовину заполнен, и перед выбором жертвы. Разбирает буферы тот,
+ * кто захватил блокировку, остальные не ждут. При заполненном буфере или гонке за место обращение теряется: для
+ * приблизительного порядка вытеснения это допустимо.
+ *
+ * @author Perekhod Oleg
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+    private static final int BUFFER_SIZE = 64;
+    private static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+
+    private final AccessBuffer[] buffers = new AccessBuffer[STRIPES];
+    //порядок и разбор буферов - под lock
+    protected final ReentrantLock lock = new ReentrantLock();
+    //accessOrder = true: первый элемент - самый давно использованный
+    private final LinkedHashMap<Integer, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    public LruPolicy() {
+        for (int i = 0; i < STRIPES; i++) {
+            buffers[i] = new AccessBuffer();
+        }
+    }
+
+    @Override
+    public void onAdd(int id) {
+        lock.lock();
+        try {
+            order.put(id, Boolean.TRUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onAccess(int id) {
+        if (id < 0) {
+            //кэш выдает положительные id, а отрицательный занял бы место буфера навсегда (пустое место - NO_VICTIM)
+            return;
+        }
+        AccessBuffer buffer = buffers[stripeIndex()];
+        if (buffer.offer(id) >= DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void onRemove(int id) {
+        lock.lock();
+        try {
+            order.remove(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int victim() {
+        lock.lock();
+        try {
+            drainBuffers();
+            Iterator<Integer> iterator = order.keySet().iterator();
+            return iterator.hasNext() ? iterator.next() : NO_VICTIM;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean admit(int candidateId, int victimId) {
+        return true;
+    }
+
+    /**
+     * Применяем обращение из буфера. Вызывается под lock.
+     */
+    protected void applyAccess(int id) {
+        order.get(id);
+    }
+
+    //---------------------UTIL---------------------------//
+
+    //Вызывается под lock
+    private void drainBuffers() {
+        for (AccessBuffer buffer : buffers) {
+            buffer.drain(this);
+        }
+    }
+
+    private static int stripeIndex() {
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Кольцевой буфер обращений: пишут потоки страйпа через CAS на счетчике записей, читает владелец блокировки
+     */
+    private static final class AccessBuffer {
+
+        private final AtomicIntegerArray ids = new AtomicIntegerArray(BUFFER_SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        //меняется под lock
+        private volatile long reads;
+
+        AccessBuffer() {
+            for (int i = 0; i < BUFFER_SIZE; i++) {
+                ids.set(i, NO_VICTIM);
+            }
+        }
+
+        /**
+         * @return сколько обращений ждет разбора, включая это
+         */
+        int offer(int id) {
+            long write = writes.get();
+            int pending = (int) (write - reads);
+            if (pending >= BUFFER_SIZE || !writes.compareAndSet(write, write + 1)) {
+                return pending;
+            }
+            ids.lazySet((int) (write & (BUFFER_SIZE - 1)), id);
+            return pending + 1;
+        }
+
+        void drain(LruPolicy policy) {
+            long read = reads;
+            long write = writes.get();
+            while (read < write) {
+                int index = (int) (read & (BUFFER_SIZE - 1));
+                int id = ids.get(index);
+                if (id == NO_VICTIM) {
+                    //место занято, но id еще не записан: разберем в следующий раз
+                    break;
+                }
+                ids.lazySet(index, NO_VICTIM);
+                policy.applyAccess(id);
+                read++;
+            }
+            reads = read;
+        }
+    }
+
+}
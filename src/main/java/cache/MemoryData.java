@@ -1,16 +1,26 @@
 package cache;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
 /**
  * Контейнер кэшируемых данных, хранящий данные в памяти
  *
  * @author Perekhod Oleg
  */
-public class MemoryData implements Data {
+public class MemoryData implements ResidentData {
 
     private final byte[] data;
+    private final boolean hasFile;
 
     public MemoryData(byte[] data) {
+        this(data, false);
+    }
+
+    MemoryData(byte[] data, boolean hasFile) {
         this.data = data;
+        this.hasFile = hasFile;
     }
 
     @Override
@@ -18,4 +28,24 @@ public class MemoryData implements Data {
         return data;
     }
 
+    @Override
+    public ByteBuffer asBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        return ImageCache.writeFully(ByteBuffer.wrap(data), target);
+    }
+
+    @Override
+    public int size() {
+        return data.length;
+    }
+
+    @Override
+    public boolean hasFile() {
+        return hasFile;
+    }
+
 }
@@ -0,0 +1,91 @@
+package cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Контейнер кэшируемых данных, хранящий данные вне кучи в блоке {@link SlabAllocator}.
+ * <p>
+ * Блок освобождается, когда запись покинула кэш и закончились все начатые чтения (счетчик ссылок). Чтение уже
+ * освобожденной записи возвращает null.
+ * <p>
+ * Запись в канал идет напрямую из блока, а {@link #asBuffer()} возвращает копию: время жизни представления
+ * кэш не контролирует, а блок после освобождения может достаться другим данным.
+ *
+ * @author Perekhod Oleg
+ */
+public class OffHeapData implements ResidentData {
+
+    private final SlabAllocator allocator;
+    private final SlabAllocator.Block block;
+    private final boolean hasFile;
+    //одна ссылка принадлежит кэшу, остальные - текущим чтениям
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    OffHeapData(SlabAllocator allocator, SlabAllocator.Block block, boolean hasFile) {
+        this.allocator = allocator;
+        this.block = block;
+        this.hasFile = hasFile;
+    }
+
+    @Override
+    public byte[] getData() {
+        if (!retain()) {
+            return null;
+        }
+        try {
+            return block.read();
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public ByteBuffer asBuffer() {
+        byte[] data = getData();
+        return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (!retain()) {
+            return -1;
+        }
+        try {
+            return ImageCache.writeFully(block.view(), target);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public int size() {
+        return block.length();
+    }
+
+    @Override
+    public boolean hasFile() {
+        return hasFile;
+    }
+
+    @Override
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            allocator.free(block);
+        }
+    }
+
+    private boolean retain() {
+        int prev;
+        do {
+            prev = refs.get();
+            if (prev == 0) {
+                return false;
+            }
+        } while (!refs.compareAndSet(prev, prev + 1));
+        return true;
+    }
+
+}
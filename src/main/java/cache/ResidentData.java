@@ -0,0 +1,42 @@
+package cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Данные, занимающие память кэша (учитываются в memoryUsage)
+ *
+ * @author Perekhod Oleg
+ */
+interface ResidentData extends Data {
+
+    /**
+     * Размер данных в байтах
+     */
+    int size();
+
+    /**
+     * Копия данных уже лежит в файле (запись поднята с диска), поэтому при вытеснении файл писать не нужно
+     */
+    boolean hasFile();
+
+    /**
+     * Read-only представление данных, null если запись уже освобождена
+     */
+    ByteBuffer asBuffer();
+
+    /**
+     * Пишем данные в канал
+     *
+     * @return сколько байт записано или -1, если запись уже освобождена
+     */
+    long transferTo(WritableByteChannel target) throws IOException;
+
+    /**
+     * Запись покинула кэш, занятую память можно освобождать
+     */
+    default void release() {
+    }
+
+}
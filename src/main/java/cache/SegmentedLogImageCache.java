@@ -0,0 +1,426 @@
+package cache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Кэш, сбрасывающий данные на диск в журнал из больших файлов-сегментов вместо отдельного файла на каждую картинку.
+ * <p>
+ * Данные дописываются в конец текущего сегмента, при превышении segmentSize открывается новый сегмент. Где лежат данные
+ * каждого id, хранится в памяти. Когда в закрытом сегменте живых данных остается меньше половины, живые записи
+ * переписываются в текущий сегмент, а старый файл удаляется (компактизация в отдельном потоке). На каждую пачку
+ * записей делается один fsync каждого сегмента, в который писали. Данные из потока пишутся в сегмент кусками.
+ * <p>
+ * Чтения без копирования отображают участок сегмента в память или передают его через {@link java.nio.channels.FileChannel#transferTo}.
+ * <p>
+ * При старте содержимое каталога с сегментами очищается. В режиме {@link ImageCacheConfig#persistent(boolean)} изменения
+ * индекса пишутся в {@link IndexJournal} после fsync сегментов, и при старте индекс восстанавливается по журналу:
+ * сегменты не читаются, данные записей подхватываются при первом обращении. Удаления попадают на диск со следующей
+ * пачкой записей или при закрытии кэша. Дедупликация в этом режиме не поддерживается.
+ * <p>
+ * Журнал пишет только поток записи (со своей пачкой) и закрытие кэша. Компактизация переносит записи и
+ * синхронизирует сегменты, в которые писала, а старый сегмент удаляется уже после того, как поток записи сохранит
+ * журнал с новыми местами записей. Изменение индекса и его запись в журнал делаются под блокировкой журнала, поэтому
+ * удаление не вклинивается между переносом записи и его записью в журнал.
+ *
+ * @author Perekhod Oleg
+ */
+public class SegmentedLogImageCache extends ImageCache {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_FILE = "index.log";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final IntConcurrentMap<Location> index = new IntConcurrentMap<>();
+    private final ConcurrentSkipListMap<Integer, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private final ExecutorService compactionExecutorService = Executors.newSingleThreadExecutor();
+    //null, если данные не сохраняются между перезапусками
+    private final IndexJournal journal;
+    //компактизированные сегменты, которые удаляются после следующей записи журнала
+    private final ConcurrentLinkedQueue<LogSegment> retiring = new ConcurrentLinkedQueue<>();
+    //текущий сегмент меняется только под блокировкой на this
+    private volatile LogSegment active;
+
+    public SegmentedLogImageCache(ImageCacheConfig config, Path directory, long segmentSize) {
+        super(config);
+        if (config.isPersistent() && config.isDeduplication()) {
+            throw new IllegalArgumentException("Deduplication is not supported in persistent mode");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+                for (Path file : files) {
+                    if (config.isPersistent()) {
+                        String name = file.getFileName().toString();
+                        openSegment(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } else {
+                        Files.delete(file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        getMetrics().gauge("segments", segments::size);
+        if (config.isPersistent()) {
+            this.journal = new IndexJournal(directory.resolve(INDEX_FILE));
+            recover();
+        } else {
+            this.journal = null;
+            this.active = openSegment(1);
+        }
+    }
+
+    /**
+     * Сегменты по 64 Мб
+     */
+    public SegmentedLogImageCache(ImageCacheConfig config, Path directory) {
+        this(config, directory, 64 * 1024 * 1024);
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        compactionExecutorService.shutdown();
+        try {
+            compactionExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (journal != null) {
+            //удаления после последней пачки записей
+            journal.commit(this::forceSegments);
+            journal.close();
+            retireCompacted(new ArrayList<>(retiring));
+        }
+        for (LogSegment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    //----------Работа с файлами--------------------//
+
+    @Override
+    protected byte[] loadFromFile(String filename) {
+        return readLocation(Integer.parseInt(filename), location -> location.segment.read(location.offset, location.length));
+    }
+
+    @Override
+    protected ByteBuffer mapFile(String filename) {
+        return readLocation(Integer.parseInt(filename),
+                location -> location.segment.map(location.offset, location.length).asReadOnlyBuffer());
+    }
+
+    @Override
+    protected long transferFile(String filename, WritableByteChannel target) throws IOException {
+        int id = Integer.parseInt(filename);
+        while (true) {
+            Location location = index.get(id);
+            if (location == null) {
+                return -1;
+            }
+            if (location.segment.retain()) {
+                try {
+                    return location.segment.transferTo(location.offset, location.length, target);
+                } finally {
+                    location.segment.release();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void saveToFile(String filename, byte[] data) {
+        int id = Integer.parseInt(filename);
+        Location location = reserve(data.length);
+        try {
+            location.segment.write(location.offset, id, data);
+        } finally {
+            compactIfSparse(location.segment);
+        }
+        publish(id, location);
+    }
+
+    /**
+     * Данные пишутся в сегмент кусками по мере чтения из source
+     */
+    @Override
+    protected void saveToFile(String filename, ReadableByteChannel source, long length) throws IOException {
+        int id = Integer.parseInt(filename);
+        Location location = reserve((int) length);
+        try {
+            location.segment.write(location.offset, id, source, (int) length);
+        } finally {
+            compactIfSparse(location.segment);
+        }
+        publish(id, location);
+    }
+
+    /**
+     * Один fsync на пачку записей для каждого сегмента, в который писали, затем запись изменений индекса в журнал и
+     * удаление сегментов, записи которых компактизация перенесла до этой записи журнала
+     */
+    @Override
+    protected void syncFiles() {
+        if (journal == null) {
+            forceSegments();
+            return;
+        }
+        List<LogSegment> compacted = new ArrayList<>(retiring);
+        journal.commit(this::forceSegments);
+        if (journal.isBloated(index.size())) {
+            journal.rewrite(entries -> index.forEach((id, location) ->
+                    entries.put(id, location.segment.getNumber(), location.offset, location.length)), this::forceSegments);
+        }
+        retireCompacted(compacted);
+    }
+
+    @Override
+    protected void deleteFile(String filename) {
+        int id = Integer.parseInt(filename);
+        Location location;
+        if (journal == null) {
+            location = index.remove(id);
+        } else {
+            synchronized (journal) {
+                location = index.remove(id);
+                if (location != null) {
+                    journal.remove(id);
+                }
+            }
+        }
+        if (location != null) {
+            markDead(location);
+        }
+    }
+
+    @Override
+    protected boolean fileExists(String filename) {
+        return index.get(Integer.parseInt(filename)) != null;
+    }
+
+    @Override
+    protected void persistIds(int lastId) {
+        if (journal != null) {
+            journal.ids(lastId);
+        }
+    }
+
+    //---------------------UTIL---------------------------//
+
+    private <T> T readLocation(int id, Function<Location, T> reader) {
+        while (true) {
+            Location location = index.get(id);
+            if (location == null) {
+                return null;
+            }
+            //сегмент могли удалить после компактизации, тогда в индексе уже новое место
+            if (location.segment.retain()) {
+                try {
+                    return reader.apply(location);
+                } finally {
+                    location.segment.release();
+                }
+            }
+        }
+    }
+
+    //Резервируем место в текущем сегменте, при необходимости открывая новый
+    private synchronized Location reserve(int length) {
+        if (active.getSize() > 0 && active.getSize() + LogSegment.HEADER_SIZE + length > segmentSize) {
+            LogSegment sealed = active;
+            active = openSegment(sealed.getNumber() + 1);
+            compactIfSparse(sealed);
+        }
+        return new Location(active, active.reserve(length), length);
+    }
+
+    private void publish(int id, Location location) {
+        Location previous;
+        if (journal == null) {
+            previous = index.put(id, location);
+        } else {
+            synchronized (journal) {
+                previous = index.put(id, location);
+                journalPut(id, location);
+            }
+        }
+        if (previous != null) {
+            markDead(previous);
+        }
+    }
+
+    //Переносим запись, если ее не удалили и не перезаписали
+    private boolean move(int id, Location location, Location moved) {
+        if (journal == null) {
+            return index.replace(id, location, moved);
+        }
+        synchronized (journal) {
+            if (!index.replace(id, location, moved)) {
+                return false;
+            }
+            journalPut(id, moved);
+            return true;
+        }
+    }
+
+    //В журнал изменения индекса попадают после того, как применены к индексу (см. IndexJournal#rewrite), вместе с
+    //изменением индекса под блокировкой журнала
+    private void journalPut(int id, Location location) {
+        journal.put(id, location.segment.getNumber(), location.offset, location.length);
+    }
+
+    private void forceSegments() {
+        for (LogSegment segment : segments.values()) {
+            segment.forceIfDirty();
+        }
+    }
+
+    //Восстанавливаем индекс по журналу. Записи сегментов, которых не оказалось в журнале, считаются мусором.
+    private void recover() {
+        int[] lastId = {0};
+        journal.replay(new IndexJournal.Visitor() {
+            @Override
+            public void put(int id, int segment, long offset, int length) {
+                LogSegment logSegment = segments.get(segment);
+                lastId[0] = Math.max(lastId[0], id);
+                if (logSegment == null || offset + length > logSegment.getSize()) {
+                    remove(id);
+                    return;
+                }
+                logSegment.getLiveBytes().addAndGet(length);
+                Location previous = index.put(id, new Location(logSegment, offset, length));
+                if (previous != null) {
+                    previous.segment.getLiveBytes().addAndGet(-previous.length);
+                }
+            }
+
+            @Override
+            public void remove(int id) {
+                Location previous = index.remove(id);
+                if (previous != null) {
+                    previous.segment.getLiveBytes().addAndGet(-previous.length);
+                }
+            }
+
+            @Override
+            public void ids(int id) {
+                lastId[0] = Math.max(lastId[0], id);
+            }
+        });
+        for (LogSegment segment : segments.values()) {
+            if (segment.getSize() == 0) {
+                segments.remove(segment.getNumber());
+                segment.retire();
+            }
+        }
+        //в старые сегменты больше не пишем: их хвост мог остаться недописанным
+        active = openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        for (LogSegment segment : segments.values()) {
+            compactIfSparse(segment);
+        }
+        resume(lastId[0]);
+    }
+
+    private void markDead(Location location) {
+        location.segment.getLiveBytes().addAndGet(-location.length);
+        compactIfSparse(location.segment);
+    }
+
+    private void compactIfSparse(LogSegment segment) {
+        //в сегмент еще могут писать, если место зарезервировали до переключения
+        if (segment != active && !segment.hasPendingWrites() && segment.getLiveBytes().get() * 2 < segment.getSize()
+                && segments.remove(segment.getNumber(), segment)) {
+            compactionExecutorService.submit(() -> compact(segment));
+        }
+    }
+
+    //Переписываем живые записи сегмента в текущий сегмент и удаляем его
+    private void compact(LogSegment segment) {
+        Set<LogSegment> written = new HashSet<>();
+        long position = 0;
+        while (position < segment.getSize()) {
+            int[] header = segment.readHeader(position);
+            int id = header[0];
+            int length = header[1];
+            long offset = position + LogSegment.HEADER_SIZE;
+            if (length < 0 || offset + length > segment.getSize()) {
+                //недописанный хвост сегмента, оставшийся после падения
+                break;
+            }
+            Location location = id == LogSegment.SKIPPED ? null : index.get(id);
+            if (location != null && location.segment == segment && location.offset == offset) {
+                Location moved = reserve(length);
+                moved.segment.write(moved.offset, id, segment.read(offset, length));
+                written.add(moved.segment);
+                if (!move(id, location, moved)) {
+                    //запись удалили, пока мы ее переносили
+                    markDead(moved);
+                }
+            }
+            position = offset + length;
+        }
+        //перенесенные записи должны оказаться на диске раньше, чем исчезнет старый файл
+        for (LogSegment target : written) {
+            target.force();
+        }
+        if (journal == null) {
+            segment.retire();
+        } else {
+            //журнал со старыми местами записей пока на диске: удалит поток записи после записи журнала
+            retiring.add(segment);
+        }
+    }
+
+    private void retireCompacted(List<LogSegment> compacted) {
+        for (LogSegment segment : compacted) {
+            //журнал пишут потоки записи всех шардов: удаляет тот, кто первым забрал сегмент
+            if (retiring.remove(segment)) {
+                segment.retire();
+            }
+        }
+    }
+
+    private LogSegment openSegment(int number) {
+        LogSegment segment = new LogSegment(number, directory.resolve(String.format("%08d", number) + SEGMENT_SUFFIX));
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private static class Location {
+
+        private final LogSegment segment;
+        private final long offset;
+        private final int length;
+
+        private Location(LogSegment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+package cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Кэш, раскладывающий данные на диске по нескольким каталогам (например на разных дисках), по файлу на запись.
+ * Каталог - это шард {@link ImageCache}: записи шарда пишет свой поток, поэтому записи на разные диски идут параллельно.
+ * <p>
+ * Файлы шарда, записанные с прошлой синхронизации, синхронизируются с диском одним проходом в {@link #syncFiles(int)}
+ * потока записи шарда, в том числе файлы, записанные вызывающими потоками.
+ * <p>
+ * При старте файлы кэша в каталогах удаляются.
+ *
+ * @author Perekhod Oleg
+ */
+public class ShardedFileImageCache extends ImageCache {
+
+    private static final String FILE_SUFFIX = ".img";
+
+    private final List<Path> directories;
+    //по шардам: записанные и еще не синхронизированные с диском файлы, под блокировкой на списке
+    private final List<List<FileChannel>> unsynced = new ArrayList<>();
+
+    /**
+     * Число шардов берется по числу каталогов, spillShards из config не используется (config не меняется)
+     */
+    public ShardedFileImageCache(ImageCacheConfig config, List<Path> directories) {
+        super(config.copy().spillShards(directories.size()));
+        this.directories = new ArrayList<>(directories);
+        for (int i = 0; i < directories.size(); i++) {
+            unsynced.add(new ArrayList<>());
+        }
+        try {
+            for (Path directory : directories) {
+                Files.createDirectories(directory);
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+                    for (Path file : files) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //----------Работа с файлами--------------------//
+
+    @Override
+    protected byte[] loadFromFile(String filename) {
+        try {
+            return Files.readAllBytes(path(filename));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected ByteBuffer mapFile(String filename) {
+        try (FileChannel channel = FileChannel.open(path(filename), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asReadOnlyBuffer();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected long transferFile(String filename, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long written = 0;
+            while (written < size) {
+                written += channel.transferTo(written, size - written, target);
+            }
+            return written;
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    protected void saveToFile(String filename, byte[] data) {
+        FileChannel channel = create(filename);
+        try {
+            writeFully(ByteBuffer.wrap(data), channel);
+        } catch (IOException e) {
+            discard(filename, channel);
+            throw new UncheckedIOException(e);
+        }
+        addUnsynced(filename, channel);
+    }
+
+    /**
+     * Данные переносятся в файл через {@link FileChannel#transferFrom} без буферизации целиком
+     */
+    @Override
+    protected void saveToFile(String filename, ReadableByteChannel source, long length) throws IOException {
+        FileChannel channel = create(filename);
+        try {
+            long written = 0;
+            while (written < length) {
+                long count = channel.transferFrom(source, written, length - written);
+                if (count == 0) {
+                    throw new EOFException("Stream ended after " + written + " of " + length + " bytes");
+                }
+                written += count;
+            }
+        } catch (IOException | RuntimeException e) {
+            discard(filename, channel);
+            throw e;
+        }
+        addUnsynced(filename, channel);
+    }
+
+    @Override
+    protected void syncFiles(int shard) {
+        List<FileChannel> shardUnsynced = unsynced.get(shard);
+        List<FileChannel> channels;
+        synchronized (shardUnsynced) {
+            channels = new ArrayList<>(shardUnsynced);
+            shardUnsynced.clear();
+        }
+        try {
+            for (FileChannel channel : channels) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (FileChannel channel : channels) {
+                close(channel);
+            }
+        }
+    }
+
+    @Override
+    protected void deleteFile(String filename) {
+        try {
+            Files.deleteIfExists(path(filename));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //---------------------UTIL---------------------------//
+
+    private void addUnsynced(String filename, FileChannel channel) {
+        List<FileChannel> shardUnsynced = unsynced.get(shardOf(Integer.parseInt(filename)));
+        synchronized (shardUnsynced) {
+            shardUnsynced.add(channel);
+        }
+    }
+
+    private Path path(String filename) {
+        return directories.get(shardOf(Integer.parseInt(filename))).resolve(filename + FILE_SUFFIX);
+    }
+
+    private FileChannel create(String filename) {
+        try {
+            return FileChannel.open(path(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void discard(String filename, FileChannel channel) {
+        close(channel);
+        try {
+            Files.deleteIfExists(path(filename));
+        } catch (IOException e) {
+            //файл без записи в кэше никто не прочитает
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //данные уже синхронизированы или запись все равно считается сбойной
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Общие данные нескольких id при дедупликации. Сами данные лежат в кэше под отдельным служебным id (storageId),
+ * а все пользовательские id ссылаются на один объект SharedContent со счетчиком ссылок.
+ *
+ * @author Perekhod Oleg
+ */
+class SharedContent implements Data {
+
+    //хэш содержимого
+    private final ByteBuffer key;
+    private final int storageId;
+    private final IntFunction<byte[]> reader;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    SharedContent(ByteBuffer key, int storageId, IntFunction<byte[]> reader) {
+        this.key = key;
+        this.storageId = storageId;
+        this.reader = reader;
+    }
+
+    @Override
+    public byte[] getData() {
+        return reader.apply(storageId);
+    }
+
+    ByteBuffer getKey() {
+        return key;
+    }
+
+    int getStorageId() {
+        return storageId;
+    }
+
+    /**
+     * @return false если последнюю ссылку уже отпустили и данные удаляются
+     */
+    boolean retain() {
+        int prev;
+        do {
+            prev = refs.get();
+            if (prev == 0) {
+                return false;
+            }
+        } while (!refs.compareAndSet(prev, prev + 1));
+        return true;
+    }
+
+    /**
+     * @return true если это была последняя ссылка
+     */
+    boolean release() {
+        return refs.decrementAndGet() == 0;
+    }
+
+}
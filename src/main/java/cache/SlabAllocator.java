@@ -0,0 +1,205 @@
+package cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Аллокатор памяти вне кучи. Память выделяется слабами (direct буферами фиксированного размера) по мере надобности,
+ * суммарный размер слабов не превышает capacity. Размер слаба выравнивается вниз до {@link #ALIGNMENT} байт.
+ * <p>
+ * Внутри слаба блоки выделяются first-fit по списку свободных участков, освобожденные участки склеиваются с соседями
+ * и переиспользуются. Размер блоков выравнивается до {@link #ALIGNMENT} байт.
+ *
+ * @author Perekhod Oleg
+ */
+public class SlabAllocator {
+
+    static final int ALIGNMENT = 16;
+
+    private final int slabSize;
+    private final long capacity;
+    private final List<Slab> slabs = new ArrayList<>();
+    private long allocated;
+
+    public SlabAllocator(long capacity, int slabSize) {
+        this.capacity = capacity;
+        this.slabSize = slabSize & -ALIGNMENT;
+    }
+
+    /**
+     * @return блок или null, если свободного участка нужного размера нет (мало памяти или сильная фрагментация)
+     */
+    public synchronized Block allocate(int length) {
+        int size = align(Math.max(length, 1));
+        if (size > slabSize) {
+            return null;
+        }
+        for (Slab slab : slabs) {
+            Block block = slab.allocate(size, length);
+            if (block != null) {
+                allocated += size;
+                return block;
+            }
+        }
+        if ((long) (slabs.size() + 1) * slabSize > capacity) {
+            return null;
+        }
+        Slab slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+        slabs.add(slab);
+        allocated += size;
+        return slab.allocate(size, length);
+    }
+
+    public synchronized void free(Block block) {
+        block.slab.free(block.offset, block.size);
+        allocated -= block.size;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Сколько байт занято блоками (с учетом выравнивания)
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocated;
+    }
+
+    /**
+     * Сколько байт зарезервировано слабами
+     */
+    public synchronized long getReservedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * Внешняя фрагментация: 0 - вся свободная память слабов одним куском, близко к 1 - свободная память раздроблена.
+     */
+    public synchronized double getFragmentation() {
+        long free = 0;
+        int largest = 0;
+        for (Slab slab : slabs) {
+            for (int length : slab.free.values()) {
+                free += length;
+                largest = Math.max(largest, length);
+            }
+        }
+        return free == 0 ? 0 : 1 - (double) largest / free;
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+
+    /**
+     * Выделенный участок слаба
+     */
+    public static class Block {
+
+        private final Slab slab;
+        private final int offset;
+        private final int size;
+        private final int length;
+
+        private Block(Slab slab, int offset, int size, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.size = size;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public void write(byte[] data) {
+            ByteBuffer buffer = slab.buffer.duplicate();
+            ((Buffer) buffer).position(offset);
+            buffer.put(data, 0, length);
+        }
+
+        /**
+         * Заполняем блок данными из канала без промежуточного массива в куче
+         *
+         * @throws EOFException если канал закончился раньше, чем заполнился блок
+         */
+        public void readFrom(ReadableByteChannel source) throws IOException {
+            ByteBuffer buffer = slab.buffer.duplicate();
+            ((Buffer) buffer).limit(offset + length);
+            ((Buffer) buffer).position(offset);
+            ImageCache.readFully(source, buffer);
+        }
+
+        public byte[] read() {
+            byte[] data = new byte[length];
+            ByteBuffer buffer = slab.buffer.duplicate();
+            ((Buffer) buffer).position(offset);
+            buffer.get(data);
+            return data;
+        }
+
+        /**
+         * Read-only представление данных блока без копирования
+         */
+        public ByteBuffer view() {
+            ByteBuffer buffer = slab.buffer.asReadOnlyBuffer();
+            ((Buffer) buffer).limit(offset + length);
+            ((Buffer) buffer).position(offset);
+            return buffer.slice();
+        }
+
+    }
+
+    private static class Slab {
+
+        private final ByteBuffer buffer;
+        //свободные участки: смещение -> длина
+        private final TreeMap<Integer, Integer> free = new TreeMap<>();
+
+        private Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+            free.put(0, buffer.capacity());
+        }
+
+        private Block allocate(int size, int length) {
+            for (Map.Entry<Integer, Integer> entry : free.entrySet()) {
+                if (entry.getValue() >= size) {
+                    //после remove TreeMap может переиспользовать узел entry, поэтому читаем его до удаления
+                    int offset = entry.getKey();
+                    int available = entry.getValue();
+                    free.remove(offset);
+                    if (available > size) {
+                        free.put(offset + size, available - size);
+                    }
+                    return new Block(this, offset, size, length);
+                }
+            }
+            return null;
+        }
+
+        private void free(int offset, int size) {
+            Map.Entry<Integer, Integer> next = free.ceilingEntry(offset);
+            if (next != null && next.getKey() == offset + size) {
+                free.remove(next.getKey());
+                size += next.getValue();
+            }
+            Map.Entry<Integer, Integer> prev = free.floorEntry(offset);
+            if (prev != null && prev.getKey() + prev.getValue() == offset) {
+                offset = prev.getKey();
+                size += prev.getValue();
+            }
+            free.put(offset, size);
+        }
+
+    }
+
+}
@@ -0,0 +1,25 @@
+package cache;
+
+/**
+ * Что делать, если очередь записи на диск заполнена
+ *
+ * @author Perekhod Oleg
+ */
+public enum SpillBackpressure {
+
+    /**
+     * Ждем, пока в очереди освободится место
+     */
+    BLOCK,
+
+    /**
+     * Бросаем {@link cache.exception.SpillQueueFullException}
+     */
+    FAIL_FAST,
+
+    /**
+     * Пишем файл сами, в вызывающем потоке, не дожидаясь места в очереди. Синхронизирует его с диском поток записи
+     */
+    CALLER_RUNS
+
+}
@@ -0,0 +1,20 @@
+package cache;
+
+/**
+ * Где хранятся данные, помещающиеся в память
+ *
+ * @author Perekhod Oleg
+ */
+public enum StorageMode {
+
+    /**
+     * Массивы byte[] в куче
+     */
+    HEAP,
+
+    /**
+     * Слабы direct буферов вне кучи, см. {@link SlabAllocator}
+     */
+    OFF_HEAP
+
+}
@@ -0,0 +1,41 @@
+package cache;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Набор блокировок чтения/записи, распределенных по id записей кэша.
+ * <p>
+ * Чтения разных (и даже одинаковых) id выполняются параллельно, запись конфликтует только с операциями
+ * над id, попавшими в тот же страйп.
+ *
+ * @author Perekhod Oleg
+ */
+class StripedReadWriteLock {
+
+    private final ReadWriteLock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes количество страйпов, округляется вверх до степени двойки
+     */
+    StripedReadWriteLock(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1) << 1);
+        this.locks = new ReadWriteLock[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    ReadWriteLock get(int id) {
+        return locks[spread(id) & mask];
+    }
+
+    //перемешиваем биты, чтобы последовательные id не попадали в соседние страйпы по одному шаблону
+    private static int spread(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
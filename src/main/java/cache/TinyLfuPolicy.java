@@ -0,0 +1,43 @@
+package cache;
+
+/**
+ * Порядок вытеснения как у {@link LruPolicy}, но новая запись вытесняет старую только если обращались к ней чаще.
+ * <p>
+ * Частота считается по всем обращениям к кэшу (в том числе к записям на диске) приблизительно и со старением, см.
+ * {@link FrequencySketch}. Так разовые картинки не выдавливают из памяти популярные. Счетчики обновляются при разборе
+ * буферов обращений, под блокировкой политики.
+ *
+ * @author Perekhod Oleg
+ */
+public class TinyLfuPolicy extends LruPolicy {
+
+    private final FrequencySketch sketch;
+
+    /**
+     * @param expectedSize ожидаемое количество различных популярных записей
+     */
+    public TinyLfuPolicy(int expectedSize) {
+        this.sketch = new FrequencySketch(expectedSize);
+    }
+
+    public TinyLfuPolicy() {
+        this(1 << 16);
+    }
+
+    @Override
+    public boolean admit(int candidateId, int victimId) {
+        lock.lock();
+        try {
+            return sketch.frequency(candidateId) > sketch.frequency(victimId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void applyAccess(int id) {
+        super.applyAccess(id);
+        sketch.increment(id);
+    }
+
+}
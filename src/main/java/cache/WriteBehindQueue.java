@@ -0,0 +1,143 @@
+package cache;
+
+import cache.exception.SpillQueueFullException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Ограниченная очередь отложенной записи. Поток-писатель забирает из очереди все, что накопилось (но не больше
+ * maxBatchSize), и отдает пачкой в batchWriter, что позволяет делать один fsync на пачку.
+ * <p>
+ * Элементы, уже записанные вызывающим потоком ({@link SpillBackpressure#CALLER_RUNS}, {@link #submitWritten(Object)}),
+ * места в очереди не занимают: писатель их только синхронизирует вместе со своей пачкой.
+ *
+ * @author Perekhod Oleg
+ */
+class WriteBehindQueue<T> {
+
+    private final BlockingQueue<Queued<T>> queue = new LinkedBlockingQueue<>();
+    //места для элементов, которые пишет писатель
+    private final Semaphore slots;
+    private final int capacity;
+    private final int maxBatchSize;
+    private final SpillBackpressure backpressure;
+    //пишет элемент в вызывающем потоке, false - запись не удалась и синхронизировать нечего
+    private final Predicate<T> callerWriter;
+    private final Consumer<List<T>> batchWriter;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    WriteBehindQueue(String name, int capacity, int maxBatchSize, SpillBackpressure backpressure,
+                     Predicate<T> callerWriter, Consumer<List<T>> batchWriter) {
+        this.slots = new Semaphore(capacity);
+        this.capacity = capacity;
+        this.maxBatchSize = maxBatchSize;
+        this.backpressure = backpressure;
+        this.callerWriter = callerWriter;
+        this.batchWriter = batchWriter;
+        this.writer = new Thread(this::writeLoop, name);
+        this.writer.start();
+    }
+
+    /**
+     * Ставим элемент в очередь. Если очередь заполнена, поступаем в соответствии с {@link SpillBackpressure}
+     */
+    void submit(T item) {
+        if (slots.tryAcquire()) {
+            queue.add(new Queued<>(item, true));
+            return;
+        }
+        switch (backpressure) {
+            case BLOCK:
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                queue.add(new Queued<>(item, true));
+                break;
+            case FAIL_FAST:
+                throw new SpillQueueFullException(capacity);
+            case CALLER_RUNS:
+                if (callerWriter.test(item)) {
+                    submitWritten(item);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Элемент уже записан вызывающим потоком, писатель только синхронизирует его со следующей пачкой. Не ждет места.
+     */
+    void submitWritten(T item) {
+        queue.add(new Queued<>(item, false));
+    }
+
+    /**
+     * Сколько элементов ждет записи
+     */
+    int size() {
+        return capacity - slots.availablePermits();
+    }
+
+    /**
+     * Дописываем все, что уже в очереди, и останавливаем писателя
+     */
+    void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Queued<T>> taken = new ArrayList<>(maxBatchSize);
+        List<T> batch = new ArrayList<>(maxBatchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Queued<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                taken.add(first);
+                queue.drainTo(taken, maxBatchSize - 1);
+                for (Queued<T> queued : taken) {
+                    batch.add(queued.item);
+                    if (queued.holdsSlot) {
+                        slots.release();
+                    }
+                }
+                batchWriter.accept(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                //batchWriter сам сообщает об ошибке ожидающим, писатель продолжает работу
+            } finally {
+                taken.clear();
+                batch.clear();
+            }
+        }
+    }
+
+    private static final class Queued<T> {
+
+        private final T item;
+        private final boolean holdsSlot;
+
+        Queued(T item, boolean holdsSlot) {
+            this.item = item;
+            this.holdsSlot = holdsSlot;
+        }
+    }
+
+}
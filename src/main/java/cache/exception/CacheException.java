@@ -0,0 +1,10 @@
+package cache.exception;
+
+/**
+ * @author Perekhod Oleg
+ */
+public abstract class CacheException extends RuntimeException {
+    public CacheException(String msg) {
+        super(msg);
+    }
+}
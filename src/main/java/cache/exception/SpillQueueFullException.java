@@ -0,0 +1,11 @@
+package cache.exception;
+
+/**
+ * @author Perekhod Oleg
+ */
+public class SpillQueueFullException extends CacheException {
+
+    public SpillQueueFullException(int capacity) {
+        super("Spill queue is full - [" + capacity + "] pending writes");
+    }
+}
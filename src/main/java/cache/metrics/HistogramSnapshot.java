@@ -0,0 +1,81 @@
+package cache.metrics;
+
+/**
+ * Снимок {@link LatencyHistogram}. Перцентили считаются с точностью до корзины (верхняя граница корзины).
+ *
+ * @author Perekhod Oleg
+ */
+public class HistogramSnapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+
+    HistogramSnapshot(long[] counts, long sum) {
+        this.counts = counts;
+        this.sum = sum;
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        this.count = count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Сумма всех значений в наносекундах
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Значение (в наносекундах), не меньше которого percentile процентов записей, с точностью до корзины
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    /**
+     * Количество записей в корзине i: значения из [2^(i-1), 2^i)
+     */
+    public long getBucketCount(int i) {
+        return counts[i];
+    }
+
+    /**
+     * Число корзин
+     */
+    public int getBuckets() {
+        return counts.length;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", mean=" + (long) getMean() + "ns, p50=" + getPercentile(50) + "ns, p99="
+                + getPercentile(99) + "ns";
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+}
@@ -0,0 +1,45 @@
+package cache.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма задержек с корзинами по степеням двойки (в наносекундах): в корзину i попадают значения из
+ * [2^(i-1), 2^i). Запись не выделяет память и не берет блокировок.
+ *
+ * @author Perekhod Oleg
+ */
+public class LatencyHistogram {
+
+    static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Записываем время, прошедшее с startNanos ({@link System#nanoTime()})
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new HistogramSnapshot(counts, sum.sum());
+    }
+
+}
@@ -0,0 +1,52 @@
+package cache.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Набор именованных метрик: счетчики, показатели (вычисляются при снимке) и гистограммы задержек.
+ * <p>
+ * Метрики регистрируются один раз, а на горячем пути используются напрямую через полученные ссылки, поэтому запись
+ * не ищет метрику по имени и не выделяет память.
+ *
+ * @author Perekhod Oleg
+ */
+public class MetricRegistry {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public MetricsSnapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        Map<String, Long> gaugeValues = new TreeMap<>();
+        gauges.forEach((name, gauge) -> gaugeValues.put(name, gauge.getAsLong()));
+        Map<String, HistogramSnapshot> histogramValues = new TreeMap<>();
+        histograms.forEach((name, histogram) -> histogramValues.put(name, histogram.snapshot()));
+        return new MetricsSnapshot(System.currentTimeMillis(), counterValues, gaugeValues, histogramValues);
+    }
+
+    /**
+     * Снимаем снимок и отдаем его exporter
+     */
+    public void exportTo(MetricsExporter exporter) {
+        exporter.export(snapshot());
+    }
+
+}
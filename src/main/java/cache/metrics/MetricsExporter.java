@@ -0,0 +1,11 @@
+package cache.metrics;
+
+/**
+ * Получатель снимков метрик (например отправка в систему мониторинга)
+ *
+ * @author Perekhod Oleg
+ */
+public interface MetricsExporter {
+
+    void export(MetricsSnapshot snapshot);
+}
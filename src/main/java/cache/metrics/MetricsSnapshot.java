@@ -0,0 +1,68 @@
+package cache.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Значения всех метрик {@link MetricRegistry} на момент снимка
+ *
+ * @author Perekhod Oleg
+ */
+public class MetricsSnapshot {
+
+    private final long timestamp;
+    private final Map<String, Long> counters;
+    private final Map<String, Long> gauges;
+    private final Map<String, HistogramSnapshot> histograms;
+
+    MetricsSnapshot(long timestamp, Map<String, Long> counters, Map<String, Long> gauges,
+                    Map<String, HistogramSnapshot> histograms) {
+        this.timestamp = timestamp;
+        this.counters = Collections.unmodifiableMap(counters);
+        this.gauges = Collections.unmodifiableMap(gauges);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * Время снимка, {@link System#currentTimeMillis()}
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    public Map<String, HistogramSnapshot> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * @return значение счетчика или 0, если счетчика нет
+     */
+    public long getCounter(String name) {
+        return counters.getOrDefault(name, 0L);
+    }
+
+    /**
+     * @return значение показателя или 0, если показателя нет
+     */
+    public long getGauge(String name) {
+        return gauges.getOrDefault(name, 0L);
+    }
+
+    public HistogramSnapshot getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return "counters=" + counters + ", gauges=" + gauges + ", histograms=" + histograms;
+    }
+
+}
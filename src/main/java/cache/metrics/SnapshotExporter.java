@@ -0,0 +1,24 @@
+package cache.metrics;
+
+/**
+ * Хранит последний полученный снимок в памяти процесса
+ *
+ * @author Perekhod Oleg
+ */
+public class SnapshotExporter implements MetricsExporter {
+
+    private volatile MetricsSnapshot lastSnapshot;
+
+    @Override
+    public void export(MetricsSnapshot snapshot) {
+        this.lastSnapshot = snapshot;
+    }
+
+    /**
+     * @return последний снимок или null, если снимков еще не было
+     */
+    public MetricsSnapshot getLastSnapshot() {
+        return lastSnapshot;
+    }
+
+}
@@ -4,11 +4,28 @@ import bank.exception.AccountNotFoundException;
 import bank.exception.BankException;
 import bank.exception.NotEnoughMoneyException;
 import bank.exception.SameAccountException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Простые тесты для проверки базовой функциональности
@@ -17,6 +34,9 @@ import java.util.Random;
  */
 public class BankTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test(expected = SameAccountException.class)
     public void testSameAccountTransfer() throws Exception {
         new Bank().transfer("someNum", "someNum", 100);
@@ -125,6 +145,679 @@ public class BankTest {
 
     }
 
+    @Test
+    //перевод без исключений возвращает статус, состояние счетов то же, что и у перевода с исключениями
+    public void testTryTransfer() throws Exception {
+        Bank bank = new Bank();
+        String account1 = bank.createAccount(10);
+        String account2 = bank.createAccount(10);
+
+        assert bank.tryTransfer(account1, account1, 1) == TransferStatus.SAME_ACCOUNT;
+        assert bank.tryTransfer(account1, "someNum", 1) == TransferStatus.ACCOUNT_NOT_FOUND;
+        assert bank.tryTransfer(account1, account2, 3) == TransferStatus.OK;
+        assert bank.tryTransfer(account1, account2, 8) == TransferStatus.NOT_ENOUGH_MONEY;
+        assert bank.getBalance(account1) == 7;
+        assert bank.getBalance(account2) == 13;
+
+        try {
+            bank.transfer("someNum", account2, 1);
+            assert false;
+        } catch (AccountNotFoundException e) {
+            assert e.getMessage().contains("someNum");
+        }
+    }
+
+    @Test
+    //распределенный баланс: зачисления из многих потоков, списания и баланс точные, минуса нет
+    public void testStripedBalance() throws Exception {
+        Bank bank = new Bank();
+        String merchant = bank.createAccount(0);
+        bank.enableStripedBalance(merchant);
+        List<String> customers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            customers.add(bank.createAccount(10_000));
+        }
+        String supplier = bank.createAccount(0);
+
+        List<Thread> threads = new ArrayList<>();
+        for (String customer : customers) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    bank.tryTransfer(customer, merchant, 1);
+                }
+            }));
+        }
+        AtomicInteger paid = new AtomicInteger();
+        threads.add(new Thread(() -> {
+            for (int i = 0; i < 100_000; i++) {
+                if (bank.tryTransfer(merchant, supplier, 1) == TransferStatus.OK) {
+                    paid.incrementAndGet();
+                }
+                assert bank.getBalance(merchant) >= 0;
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assert bank.getBalance(supplier) == paid.get();
+        assert bank.getBalance(merchant) == 80_000 - paid.get();
+        assert bank.tryTransfer(merchant, supplier, 80_001 - paid.get()) == TransferStatus.NOT_ENOUGH_MONEY;
+        for (String customer : customers) {
+            assert bank.getBalance(customer) == 0;
+        }
+    }
+
+    @Test
+    //распределенный баланс включается сам после stripeThreshold неудачных CAS, блокировка продолжает действовать
+    public void testStripedBalanceSwitch() throws Exception {
+        Account account = new Account("num", 10, 2);
+        account.onCasFailure();
+        assert !account.isStripedBalance();
+        account.onCasFailure();
+        assert account.isStripedBalance();
+
+        assert account.tryAddMoney(5) == TransferStatus.OK;
+        assert account.getMoney() == 15;
+        assert account.tryRetrieveMoney(16) == TransferStatus.NOT_ENOUGH_MONEY;
+        assert account.tryRetrieveMoney(15) == TransferStatus.OK;
+        account.block();
+        assert account.tryAddMoney(5) == TransferStatus.ACCOUNT_IS_BLOCKED;
+        assert account.getMoney() == 0;
+    }
+
+    @Test
+    //пакетный перевод: переводы с общими счетами выполняются по порядку, результаты в порядке переводов
+    public void testTransferAll() throws Exception {
+        Bank bank = new Bank();
+        String account1 = bank.createAccount(10);
+        String account2 = bank.createAccount(0);
+        String account3 = bank.createAccount(5);
+        String account4 = bank.createAccount(5);
+
+        List<TransferStatus> results = bank.transferAll(Arrays.asList(
+                new Transfer(account1, account2, 10),
+                new Transfer(account1, account3, 1),
+                new Transfer(account2, account1, 4),
+                new Transfer(account3, account4, 5),
+                new Transfer(account3, account3, 1),
+                new Transfer(account3, "someNum", 1)));
+        assert results.equals(Arrays.asList(TransferStatus.OK, TransferStatus.NOT_ENOUGH_MONEY, TransferStatus.OK,
+                TransferStatus.OK, TransferStatus.SAME_ACCOUNT, TransferStatus.ACCOUNT_NOT_FOUND));
+        assert bank.getBalance(account1) == 4;
+        assert bank.getBalance(account2) == 6;
+        assert bank.getBalance(account3) == 0;
+        assert bank.getBalance(account4) == 10;
+    }
+
+    @Test
+    //большой пакет дает те же результаты, что и последовательные переводы
+    public void testTransferAllMatchesSequential() throws Exception {
+        Random random = new Random(42);
+        Bank batchBank = new Bank();
+        Bank sequentialBank = new Bank();
+        List<String> batchAccounts = new ArrayList<>();
+        List<String> sequentialAccounts = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            int money = random.nextInt(1000);
+            batchAccounts.add(batchBank.createAccount(money));
+            sequentialAccounts.add(sequentialBank.createAccount(money));
+        }
+
+        List<Transfer> transfers = new ArrayList<>();
+        List<TransferStatus> expected = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            int from = random.nextInt(500);
+            int to = random.nextInt(500);
+            long amount = random.nextInt(500);
+            transfers.add(new Transfer(batchAccounts.get(from), batchAccounts.get(to), amount));
+            expected.add(sequentialBank.tryTransfer(sequentialAccounts.get(from), sequentialAccounts.get(to), amount));
+        }
+
+        assert batchBank.transferAll(transfers).equals(expected);
+        for (int i = 0; i < 500; i++) {
+            assert batchBank.getBalance(batchAccounts.get(i)) == sequentialBank.getBalance(sequentialAccounts.get(i));
+        }
+    }
+
+    @Test
+    //проверки идут параллельно, очередь ограничена, мошеннический перевод блокирует оба счета
+    public void testFraudCheckPipeline() throws Exception {
+        AtomicInteger parallelChecks = new AtomicInteger();
+        AtomicInteger maxParallelChecks = new AtomicInteger();
+        AtomicInteger maxBacklog = new AtomicInteger();
+        //первые 4 проверки ждут друг друга: пройти могут, только если идут одновременно
+        CountDownLatch started = new CountDownLatch(4);
+        AtomicInteger sequentialChecks = new AtomicInteger();
+        Bank[] holder = new Bank[1];
+        Bank bank = new Bank((from, to, amount) -> {
+            maxParallelChecks.accumulateAndGet(parallelChecks.incrementAndGet(), Math::max);
+            maxBacklog.accumulateAndGet(holder[0].getFraudCheckStats().getBacklog(), Math::max);
+            started.countDown();
+            try {
+                if (!started.await(10, TimeUnit.SECONDS)) {
+                    sequentialChecks.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sleep(100);
+            parallelChecks.decrementAndGet();
+            return amount == 60_000;
+        }, 4, 4);
+        holder[0] = bank;
+        String account1 = bank.createAccount(10_000_000);
+        String account2 = bank.createAccount(10_000_000);
+        String account3 = bank.createAccount(10_000_000);
+
+        for (int i = 0; i < 20; i++) {
+            bank.transfer(account1, account2, 70_000);
+        }
+        bank.transfer(account1, account3, 60_000);
+        bank.close();
+
+        //21 проверка в 4 потока
+        assert sequentialChecks.get() == 0;
+        assert maxParallelChecks.get() == 4;
+        assert maxBacklog.get() <= 8;
+        FraudCheckStats stats = bank.getFraudCheckStats();
+        assert stats.getCompleted() == 21;
+        assert stats.getFrauds() == 1;
+        assert stats.getBacklog() == 0;
+        assert stats.getMeanLatencyNanos() >= 100_000_000;
+        assert bank.isBlocked(account1) && bank.isBlocked(account3);
+        assert !bank.isBlocked(account2);
+    }
+
+    @Test(timeout = 10_000)
+    //после закрытия проверка не ставится, а место в конвейере не теряется: второй отказ не зависает
+    public void testFraudCheckAfterClose() throws Exception {
+        Bank bank = new Bank((from, to, amount) -> false, 1, 0);
+        String account1 = bank.createAccount(1_000_000);
+        String account2 = bank.createAccount(0);
+        bank.close();
+        for (int i = 0; i < 2; i++) {
+            try {
+                bank.transfer(account1, account2, 60_000);
+                assert false;
+            } catch (RejectedExecutionException e) {
+                //ожидаемо
+            }
+        }
+        assert bank.getFraudCheckStats().getBacklog() == 0;
+    }
+
+    @Test
+    //журнал: после перезапуска балансы и блокировки те же, в обоих режимах
+    public void testJournalReplay() throws Exception {
+        for (TransferJournal.Durability durability : TransferJournal.Durability.values()) {
+            Path path = folder.newFile().toPath();
+            Bank bank = new Bank((from, to, amount) -> amount == 60_000, 2, 10,
+                    new TransferJournal(path, durability, 5));
+            List<String> accounts = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                accounts.add(bank.createAccount(1000));
+            }
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int seed = t;
+                threads.add(new Thread(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 2000; i++) {
+                        bank.tryTransfer(accounts.get(random.nextInt(10)), accounts.get(random.nextInt(10)), random.nextInt(100));
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            String blocked = bank.createAccount(100_000);
+            bank.transfer(blocked, accounts.get(0), 60_000);
+            bank.close();
+            assert bank.isBlocked(blocked) && bank.isBlocked(accounts.get(0));
+
+            Bank restored = new Bank(new TransferJournal(path, durability, 5));
+            long total = 0;
+            for (String account : accounts) {
+                assert restored.getBalance(account) == bank.getBalance(account);
+                assert restored.isBlocked(account) == bank.isBlocked(account);
+                total += restored.getBalance(account);
+            }
+            assert total + restored.getBalance(blocked) == 10 * 1000 + 100_000;
+            assert restored.isBlocked(blocked);
+            restored.close();
+        }
+    }
+
+    @Test
+    //переводы одной монеты по кругу: любой префикс журнала (то, что успело на диск до падения) дает неотрицательные
+    //балансы, то есть перевод полученных денег лежит в журнале после перевода, который их принес
+    public void testJournalPrefixReplay() throws Exception {
+        Path path = folder.newFile().toPath();
+        TransferJournal journal = new TransferJournal(path, TransferJournal.Durability.ASYNC, 5);
+        Bank bank = new Bank((from, to, amount) -> false, 1, 1, journal);
+        List<String> accounts = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            accounts.add(bank.createAccount(i == 0 ? 1 : 0));
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String from = accounts.get(t);
+            String to = accounts.get((t + 1) % 4);
+            //каждый поток передает монету дальше 5000 раз, дожидаясь ее
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 5000; ) {
+                    if (bank.tryTransfer(from, to, 1) == TransferStatus.OK) {
+                        i++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        bank.close();
+
+        Map<String, Long> balances = new HashMap<>();
+        int[] transfers = new int[1];
+        new TransferJournal(path, TransferJournal.Durability.ASYNC, 5).replay(new TransferJournal.Visitor() {
+            @Override
+            public void create(String num, long money) {
+                balances.put(num, money);
+            }
+
+            @Override
+            public void transfer(String fromNum, String toNum, long amount) {
+                //баланс проверяем после каждой записи: это балансы восстановления по префиксу журнала
+                assert balances.merge(fromNum, -amount, Long::sum) >= 0;
+                balances.merge(toNum, amount, Long::sum);
+                transfers[0]++;
+            }
+
+            @Override
+            public void rollback(String fromNum, String toNum, long amount) {
+                assert balances.merge(toNum, -amount, Long::sum) >= 0;
+                balances.merge(fromNum, amount, Long::sum);
+            }
+
+            @Override
+            public void block(String num) {
+            }
+        });
+        assert transfers[0] == 4 * 5000;
+        for (String account : accounts) {
+            assert balances.get(account) == bank.getBalance(account);
+        }
+    }
+
+    @Test
+    //журнал закрылся между списанием и отказом заблокированного получателя: деньги все равно возвращаются отправителю
+    public void testJournalClosedOnRejectedCredit() throws Exception {
+        //состояние банка меняем через его visitor восстановления
+        TransferJournal.Visitor[] bankState = new TransferJournal.Visitor[1];
+        TransferJournal journal = new TransferJournal(folder.newFile().toPath(), TransferJournal.Durability.SYNC, 5) {
+            @Override
+            void replay(Visitor visitor) {
+                super.replay(visitor);
+                bankState[0] = visitor;
+            }
+
+            @Override
+            void transfer(String fromNum, String toNum, long amount) {
+                super.transfer(fromNum, toNum, amount);
+                //получателя заблокировали после проверки, отмену записать уже нельзя
+                bankState[0].block(toNum);
+                close();
+            }
+        };
+        Bank bank = new Bank(journal);
+        String account1 = bank.createAccount(100);
+        String account2 = bank.createAccount(100);
+        try {
+            bank.tryTransfer(account1, account2, 30);
+            assert false;
+        } catch (IllegalStateException e) {
+            //журнал закрыт
+        }
+        assert bank.getBalance(account1) == 100;
+        assert bank.getBalance(account2) == 100;
+        bank.close();
+    }
+
+    @Test
+    //недописанная при падении запись в конце журнала отбрасывается, новые записи идут после последней целой
+    public void testJournalTornTail() throws Exception {
+        File file = folder.newFile();
+        Bank bank = new Bank(new TransferJournal(file.toPath(), TransferJournal.Durability.SYNC, 5));
+        String account1 = bank.createAccount(100);
+        String account2 = bank.createAccount(100);
+        bank.transfer(account1, account2, 10);
+        bank.transfer(account1, account2, 20);
+        bank.close();
+
+        //последний перевод записан наполовину
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - TransferJournal.RECORD_SIZE / 2);
+        }
+        bank = new Bank(new TransferJournal(file.toPath(), TransferJournal.Durability.SYNC, 5));
+        assert bank.getBalance(account1) == 90;
+        assert bank.getBalance(account2) == 110;
+        bank.transfer(account2, account1, 5);
+        bank.close();
+
+        //испорченная контрольная сумма
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 1);
+        }
+        bank = new Bank(new TransferJournal(file.toPath(), TransferJournal.Durability.SYNC, 5));
+        assert bank.getBalance(account1) == 90;
+        assert file.length() == 3 * TransferJournal.RECORD_SIZE;
+        bank.close();
+    }
+
+    @Test
+    //переводы через шлюз: результаты как у обычного перевода, деньги не теряются
+    public void testSubmitTransfer() throws Exception {
+        Bank bank = new Bank();
+        List<String> accounts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            accounts.add(bank.createAccount(1000));
+        }
+        try (TransferGateway gateway = new TransferGateway(bank, 2, 100, 16, 500)) {
+            List<CompletableFuture<TransferStatus>> results = new ArrayList<>();
+            Random random = new Random(0);
+            for (int i = 0; i < 20_000; i++) {
+                results.add(gateway.submitTransfer(accounts.get(random.nextInt(50)), accounts.get(random.nextInt(50)),
+                        random.nextInt(300)));
+            }
+            results.add(gateway.submitTransfer(accounts.get(0), "unknown", 1));
+            results.add(gateway.submitTransfer(accounts.get(0), accounts.get(0), 1));
+            for (CompletableFuture<TransferStatus> result : results) {
+                result.join();
+            }
+            assert results.get(20_000).join() == TransferStatus.ACCOUNT_NOT_FOUND;
+            assert results.get(20_001).join() == TransferStatus.SAME_ACCOUNT;
+        }
+        long total = 0;
+        for (String account : accounts) {
+            assert bank.getBalance(account) >= 0;
+            total += bank.getBalance(account);
+        }
+        assert total == 50 * 1000;
+
+        //шлюз банка по умолчанию
+        assert bank.submitTransfer(accounts.get(0), accounts.get(1), 0).join() == TransferStatus.OK;
+        bank.close();
+    }
+
+    @Test
+    //очередь шлюза заполнена: submitTransfer ждет, пока обработчик не освободится
+    public void testSubmitTransferBackpressure() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        //одна проверка и никакой очереди: второй крупный перевод ждет в обработчике шлюза, пока не закончится первая проверка
+        Bank bank = new Bank((from, to, amount) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }, 1, 0);
+        String account1 = bank.createAccount(1_000_000);
+        String account2 = bank.createAccount(0);
+        TransferGateway gateway = new TransferGateway(bank, 1, 2, 1, 0);
+
+        List<CompletableFuture<TransferStatus>> results = new ArrayList<>();
+        Thread submitter = new Thread(() -> {
+            for (int i = 0; i < 5; i++) {
+                CompletableFuture<TransferStatus> result = gateway.submitTransfer(account1, account2, 60_000);
+                synchronized (results) {
+                    results.add(result);
+                }
+            }
+        });
+        submitter.start();
+        submitter.join(500);
+
+        //первый выполнен, второй в обработчике, два в очереди, пятый ждет места
+        assert submitter.isAlive();
+        assert gateway.getBacklog() == 2;
+        synchronized (results) {
+            assert results.size() == 4;
+            assert results.get(0).isDone() && !results.get(1).isDone();
+        }
+
+        release.countDown();
+        submitter.join();
+        for (CompletableFuture<TransferStatus> result : results) {
+            assert result.join() == TransferStatus.OK;
+        }
+        gateway.close();
+        bank.close();
+        assert bank.getBalance(account2) == 5 * 60_000;
+    }
+
+    @Test
+    //перевод пачки упал на записи журнала: исключение получает только он, остальные переводы пачки выполнены
+    public void testSubmitTransferPartialFailure() throws Exception {
+        String[] failing = new String[1];
+        TransferJournal journal = new TransferJournal(folder.newFile().toPath(), TransferJournal.Durability.SYNC, 5) {
+            @Override
+            void transfer(String fromNum, String toNum, long amount) {
+                if (fromNum.equals(failing[0])) {
+                    throw new UncheckedIOException(new IOException("disk failure"));
+                }
+                super.transfer(fromNum, toNum, amount);
+            }
+        };
+        Bank bank = new Bank(journal);
+        String account1 = bank.createAccount(1000);
+        String account2 = bank.createAccount(1000);
+        String account3 = bank.createAccount(1000);
+        String account4 = bank.createAccount(1000);
+        failing[0] = account3;
+        //все три перевода в одной пачке, первый и последний в другой группе, чем второй
+        try (TransferGateway gateway = new TransferGateway(bank, 1, 10, 3, 10_000_000)) {
+            CompletableFuture<TransferStatus> first = gateway.submitTransfer(account1, account2, 10);
+            CompletableFuture<TransferStatus> failed = gateway.submitTransfer(account3, account4, 10);
+            CompletableFuture<TransferStatus> last = gateway.submitTransfer(account2, account1, 5);
+            assert first.join() == TransferStatus.OK;
+            assert last.join() == TransferStatus.OK;
+            try {
+                failed.join();
+                assert false;
+            } catch (CompletionException e) {
+                assert e.getCause() instanceof UncheckedIOException;
+            }
+        }
+        assert bank.getBalance(account1) == 995;
+        assert bank.getBalance(account2) == 1005;
+        assert bank.getBalance(account3) == 1000;
+        assert bank.getBalance(account4) == 1000;
+        bank.close();
+    }
+
+    @Test(timeout = 30_000)
+    //переводы, поставленные одновременно с закрытием шлюза, либо выполняются, либо отклоняются при постановке
+    public void testSubmitTransferDuringClose() throws Exception {
+        Bank bank = new Bank();
+        String account1 = bank.createAccount(1_000_000);
+        String account2 = bank.createAccount(1_000_000);
+        for (int round = 0; round < 20; round++) {
+            TransferGateway gateway = new TransferGateway(bank, 1, 4, 2, 0);
+            List<CompletableFuture<TransferStatus>> results = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> submitters = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                Thread submitter = new Thread(() -> {
+                    try {
+                        while (true) {
+                            results.add(gateway.submitTransfer(account1, account2, 1));
+                            Thread.yield();
+                        }
+                    } catch (IllegalStateException e) {
+                        //шлюз закрыт
+                    }
+                });
+                submitter.start();
+                submitters.add(submitter);
+            }
+            Thread.sleep(1);
+            gateway.close();
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+            for (CompletableFuture<TransferStatus> result : results) {
+                assert result.isDone();
+            }
+        }
+        assert bank.getBalance(account1) + bank.getBalance(account2) == 2_000_000;
+        bank.close();
+    }
+
+    @Test
+    //снимки во время переводов и создания счетов: деньги сходятся в каждом снимке, без переводов снимок равен балансам
+    public void testSnapshot() throws Exception {
+        Bank bank = new Bank();
+        List<String> accounts = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            accounts.add(bank.createAccount(1000));
+        }
+        bank.enableStripedBalance(accounts.get(0));
+        AtomicInteger done = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 100_000; i++) {
+                    bank.tryTransfer(accounts.get(random.nextInt(1000)), accounts.get(random.nextInt(1000)), random.nextInt(500));
+                }
+                done.incrementAndGet();
+            }));
+        }
+        threads.add(new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                bank.createAccount(7);
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        int snapshots = 0;
+        while (done.get() < 4 || snapshots < 10) {
+            BalanceSnapshot snapshot = bank.snapshot();
+            assert snapshot.isConsistent();
+            assert snapshot.size() >= 1000 && snapshot.size() <= 2000;
+            assert snapshot.getTotal() == 1000 * 1000 + 7L * (snapshot.size() - 1000);
+            snapshots++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        BalanceSnapshot snapshot = bank.snapshot();
+        assert snapshot.isConsistent();
+        assert snapshot.size() == 2000;
+        assert snapshot.getEpoch() == snapshots + 1;
+        for (int i = 0; i < snapshot.size(); i++) {
+            assert snapshot.getBalance(i) == bank.getBalance(snapshot.getAccountNum(i));
+        }
+    }
+
+    @Test
+    //история: переводы и блокировка службой безопасности, последние операции и страницы
+    public void testHistory() throws Exception {
+        Bank bank = new Bank((from, to, amount) -> amount == 60_000, 1, 10, null, new TransferLedger());
+        String account1 = bank.createAccount(1_000_000);
+        String account2 = bank.createAccount(100_000);
+        String account3 = bank.createAccount(0);
+        for (int i = 1; i <= 20; i++) {
+            bank.transfer(account1, account2, i);
+        }
+        bank.transfer(account2, account3, 60_000);
+        //дожидаемся проверки
+        bank.close();
+
+        List<LedgerEntry> last = bank.getLastOperations(account2, 3);
+        assert last.size() == 3;
+        assert last.get(0).getType() == TransferLedger.Type.BLOCK;
+        assert last.get(1).getType() == TransferLedger.Type.TRANSFER && last.get(1).getToAccountNum().equals(account3);
+        assert last.get(2).getAmount() == 20 && last.get(2).getFromAccountNum().equals(account1);
+
+        List<LedgerEntry> history = new ArrayList<>();
+        long cursor = LedgerPage.START;
+        do {
+            LedgerPage page = bank.getHistory(account1, Long.MIN_VALUE, Long.MAX_VALUE, cursor, 7);
+            history.addAll(page.getEntries());
+            cursor = page.getNextCursor();
+        } while (cursor >= 0);
+        assert history.size() == 20;
+
+        assert bank.getLastOperations(account3, 10).size() == 2;
+    }
+
+    @Test
+    //получателя блокируют во время переводов: отклоненные переводы попадают в историю отдельным типом, и история
+    //каждого счета сходится с его балансом
+    public void testHistoryWithRejectedTransfers() throws Exception {
+        Bank bank = new Bank((from, to, amount) -> amount == 60_000, 1, 10, null, new TransferLedger());
+        String receiver = bank.createAccount(0);
+        String fraudster = bank.createAccount(100_000);
+        List<String> senders = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            senders.add(bank.createAccount(1_000_000));
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (String sender : senders) {
+            threads.add(new Thread(() -> {
+                while (bank.tryTransfer(sender, receiver, 1) != TransferStatus.ACCOUNT_IS_BLOCKED) {
+                    Thread.yield();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        //служба безопасности заблокирует получателя, пока остальные переводят ему деньги
+        bank.transfer(fraudster, receiver, 60_000);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        bank.close();
+
+        List<String> accounts = new ArrayList<>(senders);
+        accounts.add(receiver);
+        accounts.add(fraudster);
+        for (String account : accounts) {
+            long balance = account.equals(receiver) ? 0 : account.equals(fraudster) ? 100_000 : 1_000_000;
+            long cursor = LedgerPage.START;
+            do {
+                LedgerPage page = bank.getHistory(account, Long.MIN_VALUE, Long.MAX_VALUE, cursor, 1000);
+                for (LedgerEntry entry : page.getEntries()) {
+                    if (entry.getType() == TransferLedger.Type.TRANSFER) {
+                        balance += entry.getToAccountNum().equals(account) ? entry.getAmount() : -entry.getAmount();
+                    }
+                }
+                cursor = page.getNextCursor();
+            } while (cursor >= 0);
+            assert balance == bank.getBalance(account);
+        }
+        assert bank.isBlocked(receiver);
+    }
 
     private static void sleep(long ms) {
         try {
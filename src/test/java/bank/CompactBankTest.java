@@ -0,0 +1,116 @@
+package bank;
+
+import bank.exception.AccountIsBlockedException;
+import bank.exception.AccountNotFoundException;
+import bank.exception.NotEnoughMoneyException;
+import bank.exception.SameAccountException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Perekhod Oleg
+ */
+public class CompactBankTest {
+
+    @Test(expected = SameAccountException.class)
+    public void testSameAccountTransfer() throws Exception {
+        CompactBank bank = new CompactBank();
+        int account = bank.createAccount(100);
+        bank.transfer(account, account, 10);
+    }
+
+    @Test(expected = AccountNotFoundException.class)
+    public void testTransferForNotCreated() throws Exception {
+        CompactBank bank = new CompactBank();
+        int account = bank.createAccount(100);
+        bank.transfer(account, account + 1, 10);
+    }
+
+    @Test(expected = AccountNotFoundException.class)
+    public void testGetBalanceForNegative() throws Exception {
+        new CompactBank().getBalance(-1);
+    }
+
+    @Test(expected = NotEnoughMoneyException.class)
+    public void testNotEnoughMoney() throws Exception {
+        CompactBank bank = new CompactBank();
+        bank.transfer(bank.createAccount(100), bank.createAccount(100), 101);
+    }
+
+    @Test(expected = AccountIsBlockedException.class)
+    public void testBlocked() throws Exception {
+        CompactBank bank = new CompactBank();
+        int account1 = bank.createAccount(100);
+        int account2 = bank.createAccount(100);
+        bank.block(account2);
+        bank.transfer(account1, account2, 10);
+    }
+
+    @Test
+    //номера подряд, несколько кусков массивов, флаги блокировки не задевают соседей
+    public void testManyAccounts() throws Exception {
+        CompactBank bank = new CompactBank();
+        for (int i = 0; i < 200_000; i++) {
+            assert bank.createAccount(i) == i;
+        }
+        bank.block(65_536);
+        bank.block(31);
+        assert bank.isBlocked(65_536) && bank.isBlocked(31);
+        assert !bank.isBlocked(65_535) && !bank.isBlocked(65_537) && !bank.isBlocked(30) && !bank.isBlocked(32);
+        assert bank.tryTransfer(199_999, 0, 199_999) == TransferStatus.OK;
+        assert bank.getBalance(199_999) == 0;
+        assert bank.getBalance(0) == 199_999;
+        assert bank.tryTransfer(0, 31, 1) == TransferStatus.ACCOUNT_IS_BLOCKED;
+        assert bank.getBalance(0) == 199_999;
+    }
+
+    @Test
+    //параллельные переводы: деньги не теряются и баланс не уходит в минус
+    public void testConcurrentTransfers() throws Exception {
+        CompactBank bank = new CompactBank();
+        for (int i = 0; i < 100; i++) {
+            bank.createAccount(1000);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 50_000; i++) {
+                    bank.tryTransfer(random.nextInt(100), random.nextInt(100), random.nextInt(500));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long total = 0;
+        for (int i = 0; i < 100; i++) {
+            assert bank.getBalance(i) >= 0;
+            total += bank.getBalance(i);
+        }
+        assert total == 100 * 1000;
+    }
+
+    @Test
+    //мошеннический перевод блокирует оба счета
+    public void testFraudCheck() throws Exception {
+        CompactBank bank = new CompactBank((from, to, amount) -> "2".equals(to), 2, 10);
+        int account0 = bank.createAccount(1_000_000);
+        int account1 = bank.createAccount(0);
+        int account2 = bank.createAccount(0);
+        bank.transfer(account0, account1, 60_000);
+        bank.transfer(account0, account2, 60_000);
+        bank.close();
+        assert bank.isBlocked(account0) && bank.isBlocked(account2);
+        assert !bank.isBlocked(account1);
+        assert bank.getBalance(account1) == 60_000;
+    }
+
+}
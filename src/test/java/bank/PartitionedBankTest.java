@@ -0,0 +1,194 @@
+package bank;
+
+import bank.exception.AccountIsBlockedException;
+import bank.exception.AccountNotFoundException;
+import bank.exception.NotEnoughMoneyException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Perekhod Oleg
+ */
+public class PartitionedBankTest {
+
+    @Test(expected = AccountNotFoundException.class)
+    public void testTransferForNotCreated() throws Exception {
+        PartitionedBank bank = new PartitionedBank(4, (from, to, amount) -> false, 1, 1);
+        bank.transfer(bank.createAccount(100), 1, 10);
+    }
+
+    @Test(expected = NotEnoughMoneyException.class)
+    public void testNotEnoughMoney() throws Exception {
+        PartitionedBank bank = new PartitionedBank(4, (from, to, amount) -> false, 1, 1);
+        bank.transfer(bank.createAccount(100), bank.createAccount(100), 101);
+    }
+
+    @Test(expected = AccountIsBlockedException.class)
+    public void testBlockedSender() throws Exception {
+        PartitionedBank bank = new PartitionedBank(4, (from, to, amount) -> false, 1, 1);
+        int account1 = bank.createAccount(100);
+        int account2 = bank.createAccount(100);
+        bank.block(account1);
+        bank.transfer(account1, account2, 10);
+    }
+
+    @Test
+    //счета по партициям по кругу, переводы внутри партиции и между партициями
+    public void testTransfers() throws Exception {
+        PartitionedBank bank = new PartitionedBank(2, (from, to, amount) -> false, 1, 1);
+        int account0 = bank.createAccount(100);
+        int account1 = bank.createAccount(100);
+        int account2 = bank.createAccount(100);
+        assert account0 == 0 && account1 == 1 && account2 == 2;
+
+        //0 и 2 в одной партиции
+        assert bank.tryTransfer(account0, account2, 30) == TransferStatus.OK;
+        //0 и 1 в разных
+        assert bank.tryTransfer(account0, account1, 50) == TransferStatus.OK;
+        assert bank.tryTransfer(account0, account1, 50) == TransferStatus.NOT_ENOUGH_MONEY;
+        assert bank.getBalance(account0) == 20;
+        assert bank.getBalance(account1) == 150;
+        assert bank.getBalance(account2) == 130;
+        bank.close();
+    }
+
+    @Test
+    //получатель в другой партиции заблокирован: деньги возвращаются отправителю
+    public void testCompensation() throws Exception {
+        PartitionedBank bank = new PartitionedBank(2, (from, to, amount) -> false, 1, 1);
+        int account0 = bank.createAccount(100);
+        int account1 = bank.createAccount(100);
+        int account2 = bank.createAccount(100);
+        bank.block(account1);
+        bank.block(account2);
+
+        assert bank.tryTransfer(account0, account1, 40) == TransferStatus.ACCOUNT_IS_BLOCKED;
+        assert bank.tryTransfer(account0, account2, 40) == TransferStatus.ACCOUNT_IS_BLOCKED;
+        assert bank.getBalance(account0) == 100;
+        assert bank.getBalance(account1) == 100;
+        bank.close();
+    }
+
+    @Test
+    //параллельные переводы: деньги не теряются и баланс не уходит в минус
+    public void testConcurrentTransfers() throws Exception {
+        PartitionedBank bank = new PartitionedBank(4, (from, to, amount) -> false, 1, 1);
+        for (int i = 0; i < 100; i++) {
+            bank.createAccount(1000);
+        }
+        bank.block(7);
+        List<CompletableFuture<TransferStatus>> results = submitRandomTransfers(bank, 4, 20_000);
+        for (CompletableFuture<TransferStatus> result : results) {
+            result.join();
+        }
+        long total = 0;
+        for (int i = 0; i < 100; i++) {
+            assert bank.getBalance(i) >= 0;
+            total += bank.getBalance(i);
+        }
+        assert total == 100 * 1000;
+        assert bank.getBalance(7) == 1000;
+        bank.close();
+    }
+
+    @Test
+    //close завершает все поставленные переводы, в том числе с компенсацией
+    public void testCloseCompletesTransfers() throws Exception {
+        PartitionedBank bank = new PartitionedBank(4, (from, to, amount) -> false, 1, 1);
+        for (int i = 0; i < 100; i++) {
+            bank.createAccount(1000);
+        }
+        for (int i = 0; i < 100; i += 3) {
+            bank.block(i);
+        }
+        List<CompletableFuture<TransferStatus>> results = submitRandomTransfers(bank, 2, 20_000);
+        bank.close();
+        for (CompletableFuture<TransferStatus> result : results) {
+            assert result.isDone();
+        }
+    }
+
+    @Test
+    //мошеннический перевод блокирует оба счета
+    public void testFraudCheck() throws Exception {
+        PartitionedBank bank = new PartitionedBank(2, (from, to, amount) -> "2".equals(to), 2, 10);
+        int account0 = bank.createAccount(1_000_000);
+        int account1 = bank.createAccount(0);
+        int account2 = bank.createAccount(0);
+        bank.transfer(account0, account1, 60_000);
+        bank.transfer(account0, account2, 60_000);
+        //проверки идут асинхронно
+        for (int i = 0; i < 100 && !bank.isBlocked(account2); i++) {
+            Thread.sleep(50);
+        }
+        assert bank.isBlocked(account0) && bank.isBlocked(account2);
+        assert !bank.isBlocked(account1);
+        assert bank.getBalance(account1) == 60_000;
+        bank.close();
+    }
+
+    @Test
+    //конвейер проверок на одно место: поток партиции ждет места, пока проверка блокирует счета в той же партиции
+    public void testFraudCheckDoesNotBlockPartition() throws Exception {
+        PartitionedBank bank = new PartitionedBank(2, (from, to, amount) -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }, 1, 0);
+        //четные счета в партиции 0, нечетные в партиции 1: все зачисления идут в партиции 1
+        for (int i = 0; i < 8; i++) {
+            bank.createAccount(100_000);
+        }
+        List<CompletableFuture<TransferStatus>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i += 2) {
+            results.add(bank.transferAsync(i, i + 1, 60_000));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<TransferStatus> result : results) {
+            assert result.join() == TransferStatus.OK;
+        }
+        //проверки идут асинхронно, последняя блокирует счета 6 и 7
+        for (int i = 0; i < 100 && !bank.isBlocked(7); i++) {
+            Thread.sleep(50);
+        }
+        for (int i = 0; i < 8; i++) {
+            assert bank.isBlocked(i);
+        }
+        bank.close();
+    }
+
+    private static List<CompletableFuture<TransferStatus>> submitRandomTransfers(PartitionedBank bank, int threadCount,
+                                                                                 int perThread) throws InterruptedException {
+        List<CompletableFuture<TransferStatus>> results = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < perThread; i++) {
+                    CompletableFuture<TransferStatus> result =
+                            bank.transferAsync(random.nextInt(100), random.nextInt(100), random.nextInt(500));
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return results;
+    }
+
+}
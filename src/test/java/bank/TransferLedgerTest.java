@@ -0,0 +1,176 @@
+package bank;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Perekhod Oleg
+ */
+public class TransferLedgerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    //история счета страницами от новых записей к старым, чужие записи не попадают
+    public void testPages() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        TransferLedger ledger = new TransferLedger(null, clock::incrementAndGet);
+        int a = ledger.register("a");
+        int b = ledger.register("b");
+        int c = ledger.register("c");
+        for (int i = 1; i <= 10; i++) {
+            ledger.transfer(a, b, i);
+            ledger.transfer(b, c, 100 + i);
+        }
+        ledger.rejected(c, a, 1000);
+        ledger.block(a);
+
+        List<LedgerEntry> entries = new ArrayList<>();
+        long cursor = LedgerPage.START;
+        int pages = 0;
+        do {
+            LedgerPage page = ledger.query(a, Long.MIN_VALUE, Long.MAX_VALUE, cursor, 5);
+            assert page.getEntries().size() <= 5;
+            entries.addAll(page.getEntries());
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor >= 0);
+        assert entries.size() == 12;
+        assert pages == 3;
+        assert entries.get(0).getType() == TransferLedger.Type.BLOCK;
+        assert entries.get(0).getFromAccountNum().equals("a") && entries.get(0).getToAccountNum() == null;
+        assert entries.get(1).getType() == TransferLedger.Type.REJECTED;
+        assert entries.get(1).getFromAccountNum().equals("c") && entries.get(1).getAmount() == 1000;
+        for (int i = 2; i < 12; i++) {
+            assert entries.get(i).getType() == TransferLedger.Type.TRANSFER;
+            assert entries.get(i).getAmount() == 12 - i;
+            assert entries.get(i - 1).getTimeMillis() > entries.get(i).getTimeMillis();
+        }
+
+        //у b и переводы от a, и переводы на c
+        assert ledger.query(b, Long.MIN_VALUE, Long.MAX_VALUE, LedgerPage.START, 100).getEntries().size() == 20;
+        assert !ledger.query(ledger.register("d"), Long.MIN_VALUE, Long.MAX_VALUE, LedgerPage.START, 100).hasNext();
+    }
+
+    @Test
+    //интервал времени: записи новее пропускаются, на записи старше запрос останавливается
+    public void testTimeRange() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        TransferLedger ledger = new TransferLedger(null, clock::get);
+        int a = ledger.register("a");
+        int b = ledger.register("b");
+        for (int i = 0; i < 100; i++) {
+            clock.set(i * 10);
+            ledger.transfer(a, b, i);
+        }
+        //часы перевели назад: время записей не убывает
+        clock.set(0);
+        ledger.transfer(b, a, 1000);
+
+        LedgerPage page = ledger.query(a, 200, 295, LedgerPage.START, 100);
+        assert page.getEntries().size() == 10;
+        assert page.getEntries().get(0).getAmount() == 29;
+        assert page.getEntries().get(9).getAmount() == 20;
+        assert !page.hasNext();
+
+        page = ledger.query(a, 200, 295, LedgerPage.START, 4);
+        assert page.getEntries().get(3).getAmount() == 26 && page.hasNext();
+        page = ledger.query(a, 200, 295, page.getNextCursor(), 100);
+        assert page.getEntries().size() == 6 && page.getEntries().get(0).getAmount() == 25;
+
+        page = ledger.query(a, 990, Long.MAX_VALUE, LedgerPage.START, 100);
+        assert page.getEntries().size() == 2;
+        assert page.getEntries().get(0).getTimeMillis() == 990;
+    }
+
+    @Test
+    //параллельная запись: в цепочке счета все его записи и только они, время от новых к старым не растет
+    public void testConcurrentAppend() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        TransferLedger ledger = new TransferLedger(null, clock::incrementAndGet);
+        int accounts = 10;
+        for (int i = 0; i < accounts; i++) {
+            ledger.register("account" + i);
+        }
+        AtomicIntegerArray expected = new AtomicIntegerArray(accounts);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 50_000; i++) {
+                    int from = random.nextInt(accounts);
+                    int to = (from + 1 + random.nextInt(accounts - 1)) % accounts;
+                    ledger.transfer(from, to, i);
+                    expected.incrementAndGet(from);
+                    expected.incrementAndGet(to);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert ledger.size() == 4 * 50_000;
+        for (int account = 0; account < accounts; account++) {
+            String num = "account" + account;
+            int count = 0;
+            long time = Long.MAX_VALUE;
+            long cursor = LedgerPage.START;
+            do {
+                LedgerPage page = ledger.query(account, Long.MIN_VALUE, Long.MAX_VALUE, cursor, 1000);
+                for (LedgerEntry entry : page.getEntries()) {
+                    assert entry.getFromAccountNum().equals(num) || entry.getToAccountNum().equals(num);
+                    assert entry.getTimeMillis() <= time;
+                    time = entry.getTimeMillis();
+                    count++;
+                }
+                cursor = page.getNextCursor();
+            } while (cursor >= 0);
+            assert count == expected.get(account);
+        }
+    }
+
+    @Test
+    //история в отображенном файле, больше одного куска записей
+    public void testMappedChunks() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("ledger");
+        try (TransferLedger ledger = new TransferLedger(file)) {
+            int a = ledger.register("a");
+            int b = ledger.register("b");
+            int c = ledger.register("c");
+            for (int i = 0; i < 100_000; i++) {
+                ledger.transfer(a, i % 2 == 0 ? b : c, i);
+            }
+            assert ledger.size() == 100_000;
+            LedgerPage page = ledger.query(b, Long.MIN_VALUE, Long.MAX_VALUE, LedgerPage.START, 3);
+            assert page.getEntries().get(0).getAmount() == 99_998;
+            assert page.getEntries().get(2).getAmount() == 99_994;
+            long count = 0;
+            long cursor = LedgerPage.START;
+            do {
+                page = ledger.query(c, Long.MIN_VALUE, Long.MAX_VALUE, cursor, 1000);
+                count += page.getEntries().size();
+                cursor = page.getNextCursor();
+            } while (cursor >= 0);
+            assert count == 50_000;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assert channel.size() == 2L * 65536 * TransferLedger.RECORD_SIZE;
+        }
+    }
+
+}
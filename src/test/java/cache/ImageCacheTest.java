@@ -1,15 +1,32 @@
 package cache;
 
+import cache.exception.SpillQueueFullException;
+import cache.metrics.MetricsSnapshot;
+import cache.metrics.SnapshotExporter;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Perekhod Oleg
@@ -26,7 +43,7 @@ public class ImageCacheTest {
     }
 
     @Test
-    //тестируем превышение лимита
+    //тестируем превышение лимита: самая давно использованная запись вытесняется на диск
     public void testFileSystem() throws Exception {
         //ставим лимит 10 байт
         ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(10);
@@ -34,14 +51,429 @@ public class ImageCacheTest {
         int i1 = cache.putToCache(new byte[]{0, 2, 3, 7, 19});
         //кладем 4 байта
         int i2 = cache.putToCache(new byte[]{2, 3, 4, 1});
-        //кладем 2 байта
+        //кладем 2 байта, i1 уходит на диск
         int i3 = cache.putToCache(new byte[]{1, 3});
 
         assert Arrays.equals(cache.getFromCache(i1), new byte[]{0, 2, 3, 7, 19});
         assert Arrays.equals(cache.getFromCache(i2), new byte[]{2, 3, 4, 1});
         assert Arrays.equals(cache.getFromCache(i3), new byte[]{1, 3});
         assert cache.fileSystem.size() == 1;
-        assert Arrays.equals(cache.fileSystem.get(i3 + ""), new byte[]{1, 3});
+        assert Arrays.equals(cache.fileSystem.get(i1 + ""), new byte[]{0, 2, 3, 7, 19});
+    }
+
+    @Test
+    //LRU: при вытеснении учитываются обращения, а не только порядок добавления
+    public void testLruEviction() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(10);
+        int i1 = cache.putToCache(new byte[]{1, 1, 1, 1});
+        int i2 = cache.putToCache(new byte[]{2, 2, 2, 2});
+        cache.getFromCache(i1);
+        int i3 = cache.putToCache(new byte[]{3, 3, 3, 3});
+
+        assert Arrays.equals(cache.getFromCache(i2), new byte[]{2, 2, 2, 2});
+        assert cache.fileSystem.size() == 1;
+        assert cache.fileSystem.containsKey(i2 + "");
+        assert Arrays.equals(cache.getFromCache(i1), new byte[]{1, 1, 1, 1});
+        assert Arrays.equals(cache.getFromCache(i3), new byte[]{3, 3, 3, 3});
+    }
+
+    @Test
+    //TinyLFU: разовая запись не вытесняет из памяти ту, к которой обращались чаще
+    public void testTinyLfuAdmission() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(10, new TinyLfuPolicy(16));
+        int i1 = cache.putToCache(new byte[]{1, 1, 1, 1, 1});
+        int i2 = cache.putToCache(new byte[]{2, 2, 2, 2, 2});
+        for (int i = 0; i < 3; i++) {
+            cache.getFromCache(i1);
+            cache.getFromCache(i2);
+        }
+        int i3 = cache.putToCache(new byte[]{3});
+
+        assert Arrays.equals(cache.getFromCache(i3), new byte[]{3});
+        assert cache.fileSystem.size() == 1;
+        assert cache.fileSystem.containsKey(i3 + "");
+    }
+
+    @Test
+    //обращения копятся в буферах без блокировки и учитываются перед выбором жертвы, буферы не застревают после гонок
+    public void testLruPolicyAccessBuffers() throws Exception {
+        LruPolicy policy = new LruPolicy();
+        for (int id = 1; id <= 100; id++) {
+            policy.onAdd(id);
+        }
+        policy.onAccess(1);
+        assert policy.victim() == 2;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    policy.onAccess(1 + i % 100);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        //из одного потока обращения не теряются: давнее всех использована 50
+        for (int id = 1; id <= 100; id++) {
+            if (id != 50) {
+                policy.onAccess(id);
+            }
+        }
+        assert policy.victim() == 50;
+        policy.onRemove(50);
+        assert policy.victim() == 1;
+    }
+
+    @Test
+    //часто читаемая запись поднимается с диска обратно в память
+    public void testPromotion() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig().memoryLimit(10).promotionThreshold(2));
+        int i1 = cache.putToCache(new byte[]{1, 1, 1, 1, 1, 1});
+        int i2 = cache.putToCache(new byte[]{2, 2, 2, 2, 2, 2});
+        //i1 вытеснен на диск, первое чтение идет с диска
+        assert Arrays.equals(cache.getFromCache(i1), new byte[]{1, 1, 1, 1, 1, 1});
+        assert cache.getPromotionCount() == 0;
+        //второе чтение поднимает i1 в память, вытесняя i2
+        assert Arrays.equals(cache.getFromCache(i1), new byte[]{1, 1, 1, 1, 1, 1});
+        assert cache.getPromotionCount() == 1;
+        assert Arrays.equals(cache.getFromCache(i2), new byte[]{2, 2, 2, 2, 2, 2});
+
+        //i1 теперь читается из памяти
+        cache.fileSystem.remove(i1 + "");
+        assert Arrays.equals(cache.getFromCache(i1), new byte[]{1, 1, 1, 1, 1, 1});
+        assert cache.removeFromCache(i1);
+        assert cache.removeFromCache(i2);
+        assert cache.fileSystem.isEmpty();
+    }
+
+    @Test
+    //хранение вне кучи: вытеснение, подъем и удаление возвращают блоки аллокатору
+    public void testOffHeap() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                .memoryLimit(64).slabSize(32).storageMode(StorageMode.OFF_HEAP));
+        int i1 = cache.putToCache(new byte[]{1, 2, 3});
+        int i2 = cache.putToCache(new byte[30]);
+        int i3 = cache.putToCache(new byte[30]);
+        SlabAllocator allocator = cache.getSlabAllocator();
+        assert allocator.getReservedBytes() == 64;
+
+        assert Arrays.equals(cache.getFromCache(i1), new byte[]{1, 2, 3});
+        assert Arrays.equals(cache.getFromCache(i2), new byte[30]);
+        assert Arrays.equals(cache.getFromCache(i3), new byte[30]);
+        //i1 вытеснен, чтобы освободить место под i3
+        assert cache.fileSystem.size() == 1;
+        assert cache.fileSystem.containsKey(i1 + "");
+
+        //данные больше слаба сразу уходят на диск
+        int i4 = cache.putToCache(new byte[40]);
+        assert Arrays.equals(cache.getFromCache(i4), new byte[40]);
+
+        assert cache.removeFromCache(i1);
+        assert cache.removeFromCache(i2);
+        assert cache.removeFromCache(i3);
+        assert cache.removeFromCache(i4);
+        assert allocator.getAllocatedBytes() == 0;
+        assert cache.fileSystem.isEmpty();
+    }
+
+    @Test
+    //чтение без копирования для данных в куче, вне кучи и на диске
+    public void testZeroCopy() throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                    .memoryLimit(32).slabSize(32).storageMode(mode));
+            int memory = cache.putToCache(new byte[]{1, 2, 3});
+            int disk = cache.putToCache(new byte[]{4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21,
+                    22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36});
+            assert cache.getFromCacheAsBuffer(100) == null;
+
+            ByteBuffer buffer = cache.getFromCacheAsBuffer(memory);
+            assert buffer.isReadOnly();
+            assert buffer.remaining() == 3 && buffer.get(0) == 1 && buffer.get(2) == 3;
+            buffer = cache.getFromCacheAsBuffer(disk);
+            assert buffer.remaining() == 33 && buffer.get(0) == 4;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assert cache.transferTo(memory, Channels.newChannel(out)) == 3;
+            assert cache.transferTo(disk, Channels.newChannel(out)) == 33;
+            assert out.size() == 36 && out.toByteArray()[3] == 4;
+            assert cache.transferTo(100, Channels.newChannel(out)) == -1;
+        }
+    }
+
+    @Test
+    //данные из потока: помещающиеся читаются в память, остальные сразу пишутся на диск в вызывающем потоке
+    public void testStreaming() throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                    .memoryLimit(32).slabSize(32).storageMode(mode));
+            byte[] small = {1, 2, 3};
+            byte[] large = new byte[100];
+            Arrays.fill(large, (byte) 7);
+            int memory = cache.putToCache(new ByteArrayInputStream(small), small.length);
+            int disk = cache.putToCache(new ByteArrayInputStream(large), large.length);
+            assert cache.getMemoryUsage() == 3;
+            assert cache.fileSystem.containsKey(disk + "");
+            assert cache.getSpillQueueSize() == 0;
+
+            assert Arrays.equals(readAll(cache.getFromCacheAsStream(memory)), small);
+            assert Arrays.equals(readAll(cache.getFromCacheAsStream(disk)), large);
+            assert Arrays.equals(cache.getFromCache(disk), large);
+            assert cache.getFromCacheAsStream(100) == null;
+
+            //поток короче заявленной длины: ничего не сохраняется, память не занимается
+            for (int length : new int[]{10, 200}) {
+                try {
+                    cache.putToCache(new ByteArrayInputStream(small), length);
+                    assert false;
+                } catch (EOFException e) {
+                    //ожидаемо
+                }
+            }
+            assert cache.getMemoryUsage() == 3;
+            assert cache.fileSystem.size() == 1;
+            //файл записал вызывающий поток, синхронизировал поток записи
+            assert cache.syncThreads.equals(Collections.singleton("image-cache-writer-0"));
+        }
+    }
+
+    @Test
+    //записи разных шардов пишут разные потоки, запись одного шарда не задерживает остальные
+    public void testShardedSpill() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                .memoryLimit(0).spillShards(4));
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            ids.add(cache.putToCache(new byte[]{(byte) i}));
+        }
+        for (int i = 0; i < 40; i++) {
+            assert cache.getFromCache(ids.get(i))[0] == i;
+        }
+        for (Integer id : ids) {
+            assert cache.writerThreads.get(id + "").equals("image-cache-writer-" + cache.shardOf(id));
+        }
+        assert new HashSet<>(cache.writerThreads.values()).size() == 4;
+
+        //запись в первый шард зависла, остальные шарды продолжают писать
+        int slow = ids.get(39) + 1;
+        cache.slowFileNames.add(slow + "");
+        assert cache.putToCache(new byte[]{1}) == slow;
+        int other;
+        do {
+            other = cache.putToCache(new byte[]{2});
+        } while (cache.shardOf(other) == cache.shardOf(slow));
+        assert cache.getFromCache(other)[0] == 2;
+        cache.slowFileNames.clear();
+        assert cache.getFromCache(slow)[0] == 1;
+    }
+
+    @Test
+    //попадания в память и на диск, промахи, сбросы на диск и задержки работы с файлами
+    public void testMetrics() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                .memoryLimit(4).promotionThreshold(100));
+        int memory = cache.putToCache(new byte[]{1, 2, 3});
+        int disk = cache.putToCache(new byte[10]);
+        cache.getFromCache(memory);
+        cache.getFromCache(disk);
+        cache.getFromCache(disk);
+        cache.getFromCache(100);
+
+        SnapshotExporter exporter = new SnapshotExporter();
+        cache.getMetrics().exportTo(exporter);
+        MetricsSnapshot snapshot = exporter.getLastSnapshot();
+        assert snapshot.getCounter("memoryHits") == 1;
+        assert snapshot.getCounter("diskHits") == 2;
+        assert snapshot.getCounter("misses") == 1;
+        assert snapshot.getCounter("spills") == 1;
+        assert snapshot.getGauge("memoryUsage") == 3;
+        assert snapshot.getGauge("entries") == 2;
+        assert snapshot.getGauge("spillQueueSize") == 0;
+        assert snapshot.getHistogram("saveToFile").getCount() == 1;
+        assert snapshot.getHistogram("syncFiles").getCount() == 1;
+        assert snapshot.getHistogram("loadFromFile").getCount() == 2;
+        assert snapshot.getHistogram("lazyWait").getCount() == 2;
+    }
+
+    @Test
+    //записи на диск накапливаются в очереди и сохраняются пачками с одним fsync на пачку
+    public void testBatchedSpill() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig().memoryLimit(0));
+        cache.slowFileNames.add("1");
+        List<Integer> ids = new ArrayList<>();
+        //первую запись писатель забирает из очереди и зависает на ней
+        ids.add(cache.putToCache(new byte[]{0}));
+        sleep(200);
+        for (int i = 1; i < 10; i++) {
+            ids.add(cache.putToCache(new byte[]{(byte) i}));
+        }
+        assert cache.getSpillQueueSize() == 9;
+        cache.slowFileNames.clear();
+        for (int i = 0; i < 10; i++) {
+            assert Arrays.equals(cache.getFromCache(ids.get(i)), new byte[]{(byte) i});
+        }
+        //остальные записи ждали в очереди и ушли одной пачкой
+        assert cache.syncCount.get() == 2;
+        assert cache.getSpillQueueSize() == 0;
+    }
+
+    @Test
+    //заполненная очередь записи: ждем, отказываем или пишем сами
+    public void testSpillBackpressure() throws Exception {
+        ImageCacheWithFakeFileSystem failFast = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                .memoryLimit(0).spillQueueCapacity(2).spillBackpressure(SpillBackpressure.FAIL_FAST));
+        failFast.fileSystemIsWorking.set(false);
+        //первую запись писатель забирает из очереди и зависает на ней
+        failFast.putToCache(new byte[]{1});
+        sleep(200);
+        failFast.putToCache(new byte[]{2});
+        failFast.putToCache(new byte[]{3});
+        try {
+            failFast.putToCache(new byte[]{4});
+            assert false;
+        } catch (SpillQueueFullException e) {
+            //ожидаемо
+        }
+        failFast.fileSystemIsWorking.set(true);
+
+        ImageCacheWithFakeFileSystem block = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                .memoryLimit(0).spillQueueCapacity(1).spillBackpressure(SpillBackpressure.BLOCK));
+        block.fileSystemIsWorking.set(false);
+        block.putToCache(new byte[]{1});
+        sleep(200);
+        block.putToCache(new byte[]{2});
+        Future<Integer> blocked = Executors.newSingleThreadExecutor().submit(() -> block.putToCache(new byte[]{3}));
+        sleep(100);
+        assert !blocked.isDone();
+        block.fileSystemIsWorking.set(true);
+        assert Arrays.equals(block.getFromCache(blocked.get(1, TimeUnit.SECONDS)), new byte[]{3});
+
+        ImageCacheWithFakeFileSystem callerRuns = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                .memoryLimit(0).spillQueueCapacity(1).spillBackpressure(SpillBackpressure.CALLER_RUNS));
+        callerRuns.slowFileNames.add("1");
+        callerRuns.putToCache(new byte[]{1});
+        sleep(200);
+        callerRuns.putToCache(new byte[]{2});
+        int i3 = callerRuns.putToCache(new byte[]{3});
+        //третью запись сохранил вызывающий поток, пока писатель висит на первой, а синхронизирует ее писатель
+        assert Thread.currentThread().getName().equals(callerRuns.writerThreads.get(i3 + ""));
+        assert callerRuns.syncCount.get() == 0;
+        callerRuns.slowFileNames.clear();
+        assert Arrays.equals(callerRuns.getFromCache(i3), new byte[]{3});
+        assert callerRuns.syncThreads.equals(Collections.singleton("image-cache-writer-0"));
+    }
+
+    @Test
+    //очередь записи отказала при вытеснении (FAIL_FAST): запись остается в памяти и вытесняется позже
+    public void testFailedDemoteKeepsEntry() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                .memoryLimit(4).spillQueueCapacity(1).spillBackpressure(SpillBackpressure.FAIL_FAST));
+        cache.fileSystemIsWorking.set(false);
+        cache.putToCache(new byte[]{1, 1});
+        cache.putToCache(new byte[]{2, 2});
+        //первую вытесненную запись писатель забирает из очереди и зависает на ней, вторая занимает очередь
+        int i3 = cache.putToCache(new byte[]{3, 3});
+        sleep(200);
+        cache.putToCache(new byte[]{4, 4});
+        try {
+            cache.putToCache(new byte[]{5, 5});
+            assert false;
+        } catch (SpillQueueFullException e) {
+            //ожидаемо
+        }
+        //i3 и i4 в памяти
+        assert cache.getMemoryUsage() == 4;
+
+        cache.fileSystemIsWorking.set(true);
+        while (cache.getSpillQueueSize() > 0) {
+            sleep(10);
+        }
+        //i3 по-прежнему на учете у политики и вытесняется следующей
+        cache.putToCache(new byte[]{6, 6});
+        assert Arrays.equals(cache.getFromCache(i3), new byte[]{3, 3});
+        assert cache.fileSystem.containsKey(i3 + "");
+    }
+
+    @Test
+    //дедупликация: одинаковые данные хранятся один раз и удаляются вместе с последним id
+    public void testDeduplication() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                .memoryLimit(8).deduplication(true));
+        int i1 = cache.putToCache(new byte[]{1, 2, 3, 4});
+        int i2 = cache.putToCache(new byte[]{1, 2, 3, 4});
+        int i3 = cache.putToCache(new byte[]{5, 6, 7, 8});
+        assert i1 != i2;
+        assert cache.getMemoryUsage() == 8;
+        assert Arrays.equals(cache.getFromCache(i1), new byte[]{1, 2, 3, 4});
+        assert Arrays.equals(cache.getFromCache(i2), new byte[]{1, 2, 3, 4});
+        assert Arrays.equals(cache.getFromCache(i3), new byte[]{5, 6, 7, 8});
+
+        //данные остаются, пока на них ссылается хотя бы один id
+        assert cache.removeFromCache(i1);
+        assert !cache.removeFromCache(i1);
+        assert cache.getFromCache(i1) == null;
+        assert Arrays.equals(cache.getFromCache(i2), new byte[]{1, 2, 3, 4});
+        assert cache.getMemoryUsage() == 8;
+        assert cache.removeFromCache(i2);
+        assert cache.getMemoryUsage() == 4;
+
+        //после удаления такие же данные кладутся заново
+        int i4 = cache.putToCache(new byte[]{1, 2, 3, 4});
+        assert Arrays.equals(cache.getFromCache(i4), new byte[]{1, 2, 3, 4});
+        assert cache.getMemoryUsage() == 8;
+        assert cache.fileSystem.isEmpty();
+    }
+
+    @Test
+    //дедупликация в конкурентном режиме: после удаления всех id память полностью освобождается
+    public void testConcurrentDeduplication() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(new ImageCacheConfig()
+                .memoryLimit(1024).deduplication(true));
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    int id = cache.putToCache(new byte[]{(byte) (j % 4), 1, 2});
+                    assert Arrays.equals(cache.getFromCache(id), new byte[]{(byte) (j % 4), 1, 2});
+                    assert cache.removeFromCache(id);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert cache.getMemoryUsage() == 0;
+    }
+
+    @Test
+    //удаление освобождает и память, и файлы
+    public void testRemove() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(4);
+        assert !cache.removeFromCache(100);
+
+        int i1 = cache.putToCache(new byte[]{1, 2, 3, 4});
+        int i2 = cache.putToCache(new byte[]{1, 2, 3, 4, 5});
+        assert Arrays.equals(cache.getFromCache(i2), new byte[]{1, 2, 3, 4, 5});
+        assert cache.fileSystem.size() == 1;
+
+        assert cache.removeFromCache(i1);
+        assert cache.removeFromCache(i2);
+        assert !cache.removeFromCache(i2);
+        assert cache.getFromCache(i1) == null;
+        assert cache.getFromCache(i2) == null;
+        assert cache.fileSystem.isEmpty();
+
+        //память освободилась: новая запись помещается без вытеснения
+        int i3 = cache.putToCache(new byte[]{4, 3, 2, 1});
+        assert Arrays.equals(cache.getFromCache(i3), new byte[]{4, 3, 2, 1});
+        assert cache.fileSystem.isEmpty();
     }
 
     @Test
@@ -69,9 +501,29 @@ public class ImageCacheTest {
     }
 
     @Test
-    //В конкурентном режиме грузим кэш. В случае если not-thread-safe методы "придет" больше одного потока, то получим ошибку.
+    //тестируем неблокирующее чтение: future завершается сразу после записи на диск
+    public void testGetAsync() throws Exception {
+        ImageCacheWithFakeFileSystem cache = new ImageCacheWithFakeFileSystem(3);
+        assert cache.getFromCacheAsync(100).get() == null;
+
+        int i1 = cache.putToCache(new byte[]{1, 2});
+        CompletableFuture<byte[]> memory = cache.getFromCacheAsync(i1);
+        assert memory.isDone();
+        assert Arrays.equals(memory.get(), new byte[]{1, 2});
+
+        cache.fileSystemIsWorking.set(false);
+        int i2 = cache.putToCache(new byte[]{2, 3, 4, 1});
+        CompletableFuture<byte[]> disk = cache.getFromCacheAsync(i2);
+        sleep(100);
+        assert !disk.isDone();
+        cache.fileSystemIsWorking.set(true);
+        assert Arrays.equals(disk.get(1, TimeUnit.SECONDS), new byte[]{2, 3, 4, 1});
+    }
+
+    @Test
+    //В конкурентном режиме грузим кэш. В случае если запись в файл пересечется с любой другой операцией над тем же файлом, то получим ошибку.
     public void testConcurrent() throws Exception {
-        ImageCache cache = new ImageCacheWithNotThreadSafeFileSystem(20);
+        ImageCache cache = new ImageCacheWithExclusiveWriteFileSystem(20);
         List<Thread> threads = new ArrayList<>();
         for (int i = 0; i < 1000; i++) {
             Thread thread = new Thread(() -> {
@@ -89,55 +541,148 @@ public class ImageCacheTest {
     }
 
 
+    @Test
+    //чтения разных файлов должны идти параллельно: каждое чтение ждет, пока остальные тоже начнутся
+    public void testParallelReads() throws Exception {
+        int readers = 4;
+        ImageCacheWithBarrierFileSystem cache = new ImageCacheWithBarrierFileSystem(readers);
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            ids.add(cache.putToCache(new byte[]{(byte) i}));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (Integer id : ids) {
+                futures.add(executor.submit(() -> cache.getFromCache(id)));
+            }
+            for (int i = 0; i < readers; i++) {
+                assert Arrays.equals(futures.get(i).get(), new byte[]{(byte) i});
+            }
+            assert cache.maxParallelReads.get() == readers;
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            cache.close();
+        }
+    }
+
+
     //--------------------------UTIL------------------------------//
 
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[16];
+        int count;
+        while ((count = in.read(chunk)) >= 0) {
+            out.write(chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
 
-    private static class ImageCacheWithNotThreadSafeFileSystem extends ImageCache {
+    private static class ImageCacheWithExclusiveWriteFileSystem extends ImageCache {
 
-        private final Map<String, byte[]> fileSystem = new HashMap<>();
-        private boolean inWork = false;
+        private final Map<String, byte[]> fileSystem = new ConcurrentHashMap<>();
+        //для каждого файла: -1 - идет запись, N >= 0 - количество текущих чтений
+        private final Map<String, AtomicInteger> access = new ConcurrentHashMap<>();
 
-        public ImageCacheWithNotThreadSafeFileSystem(int memoryLimit) {
+        public ImageCacheWithExclusiveWriteFileSystem(int memoryLimit) {
             super(memoryLimit);
         }
 
         @Override
         protected byte[] loadFromFile(String filename) {
+            AtomicInteger state = access.computeIfAbsent(filename, f -> new AtomicInteger());
+            if (state.getAndUpdate(v -> v < 0 ? v : v + 1) < 0) {
+                throw new AssertionError();
+            }
             try {
-                if (inWork) {
-                    throw new AssertionError();
-                }
-                inWork = true;
                 return fileSystem.get(filename);
             } finally {
-                inWork = false;
+                state.decrementAndGet();
             }
         }
 
         @Override
         protected void saveToFile(String filename, byte[] data) {
+            AtomicInteger state = access.computeIfAbsent(filename, f -> new AtomicInteger());
+            if (!state.compareAndSet(0, -1)) {
+                throw new AssertionError();
+            }
             try {
-                if (inWork) {
-                    throw new AssertionError();
-                }
-                inWork = true;
                 fileSystem.put(filename, data);
             } finally {
-                inWork = false;
+                state.set(0);
+            }
+        }
+
+        @Override
+        protected void deleteFile(String filename) {
+            fileSystem.remove(filename);
+        }
+    }
+
+    private static class ImageCacheWithBarrierFileSystem extends ImageCache {
+
+        private final Map<String, byte[]> fileSystem = new ConcurrentHashMap<>();
+        private final CyclicBarrier barrier;
+        private final AtomicInteger parallelReads = new AtomicInteger();
+        private final AtomicInteger maxParallelReads = new AtomicInteger();
+
+        public ImageCacheWithBarrierFileSystem(int readers) {
+            super(0);
+            this.barrier = new CyclicBarrier(readers);
+        }
+
+        @Override
+        protected byte[] loadFromFile(String filename) {
+            int current = parallelReads.incrementAndGet();
+            maxParallelReads.accumulateAndGet(current, Math::max);
+            try {
+                //если чтения сериализованы, то барьер не дождется остальных потоков
+                barrier.await(5, TimeUnit.SECONDS);
+                return fileSystem.get(filename);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            } finally {
+                parallelReads.decrementAndGet();
             }
         }
+
+        @Override
+        protected void saveToFile(String filename, byte[] data) {
+            fileSystem.put(filename, data);
+        }
+
+        @Override
+        protected void deleteFile(String filename) {
+            fileSystem.remove(filename);
+        }
     }
 
     private static class ImageCacheWithFakeFileSystem extends ImageCache {
 
-        private final Map<String, byte[]> fileSystem = new HashMap<>();
+        private final Map<String, byte[]> fileSystem = new ConcurrentHashMap<>();
         private final AtomicBoolean fileSystemIsWorking = new AtomicBoolean(true);
-
+        //файлы, запись которых зависает, пока список не очистят
+        private final Set<String> slowFileNames = ConcurrentHashMap.newKeySet();
+        private final Map<String, String> writerThreads = new ConcurrentHashMap<>();
+        private final AtomicInteger syncCount = new AtomicInteger();
+        private final Set<String> syncThreads = ConcurrentHashMap.newKeySet();
 
         public ImageCacheWithFakeFileSystem(int memoryLimit) {
             super(memoryLimit);
         }
 
+        public ImageCacheWithFakeFileSystem(int memoryLimit, EvictionPolicy evictionPolicy) {
+            super(memoryLimit, evictionPolicy);
+        }
+
+        public ImageCacheWithFakeFileSystem(ImageCacheConfig config) {
+            super(config);
+        }
+
         @Override
         protected byte[] loadFromFile(String filename) {
             return fileSystem.get(filename);
@@ -145,11 +690,23 @@ public class ImageCacheTest {
 
         @Override
         protected void saveToFile(String filename, byte[] data) {
-            while (!fileSystemIsWorking.get()) {
+            while (!fileSystemIsWorking.get() || slowFileNames.contains(filename)) {
                 sleep(10);
             }
+            writerThreads.put(filename, Thread.currentThread().getName());
             fileSystem.put(filename, data);
         }
+
+        @Override
+        protected void syncFiles() {
+            syncCount.incrementAndGet();
+            syncThreads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        protected void deleteFile(String filename) {
+            fileSystem.remove(filename);
+        }
     }
 
     private static class ImageCacheWithoutFileSystem extends ImageCache {
@@ -161,6 +718,10 @@ public class ImageCacheTest {
         @Override
         protected void saveToFile(String filename, byte[] data) {
         }
+
+        @Override
+        protected void deleteFile(String filename) {
+        }
     }
 
 
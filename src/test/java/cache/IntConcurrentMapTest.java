@@ -0,0 +1,96 @@
+package cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Perekhod Oleg
+ */
+public class IntConcurrentMapTest {
+
+    @Test
+    //простые операции и переиспользование ячейки удаленного ключа
+    public void testOperations() throws Exception {
+        IntConcurrentMap<String> map = new IntConcurrentMap<>(4);
+        assert map.get(1) == null;
+        assert map.put(1, "a") == null;
+        assert map.put(1, "b").equals("a");
+        assert map.putIfAbsent(1, "c").equals("b");
+        assert map.putIfAbsent(2, "c") == null;
+        assert map.size() == 2;
+
+        assert !map.replace(1, "a", "d");
+        assert map.replace(1, "b", "d");
+        assert map.get(1).equals("d");
+        assert !map.remove(1, "b");
+        assert map.remove(1, "d");
+        assert map.get(1) == null;
+        assert map.remove(2).equals("c");
+        assert map.remove(2) == null;
+        assert !map.replace(2, "c", "e");
+        assert map.size() == 0;
+
+        assert map.put(1, "e") == null;
+        assert map.get(1).equals("e");
+        assert map.size() == 1;
+
+        //обход пропускает удаленные ключи
+        map.put(3, "f");
+        List<String> entries = new ArrayList<>();
+        map.forEach((key, value) -> entries.add(key + value));
+        assert entries.size() == 2 && entries.contains("1e") && entries.contains("3f");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroKey() throws Exception {
+        new IntConcurrentMap<String>().put(0, "a");
+    }
+
+    @Test
+    //таблица растет и перестраивается без потери ключей
+    public void testGrowth() throws Exception {
+        IntConcurrentMap<Integer> map = new IntConcurrentMap<>(2);
+        for (int i = 1; i <= 100000; i++) {
+            map.put(i, i);
+        }
+        for (int i = 1; i <= 100000; i += 2) {
+            map.remove(i);
+        }
+        for (int i = 1; i <= 100000; i++) {
+            assert i % 2 == 1 ? map.get(i) == null : map.get(i) == i;
+        }
+        assert map.size() == 50000;
+    }
+
+    @Test
+    //потоки работают с непересекающимися ключами, читатели параллельно проверяют, что ключи не теряются при перестроении
+    public void testConcurrent() throws Exception {
+        IntConcurrentMap<Integer> map = new IntConcurrentMap<>(4);
+        for (int i = 1; i <= 1000; i++) {
+            map.put(-i, i);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int base = t * 100000;
+            Thread thread = new Thread(() -> {
+                for (int i = 1; i <= 20000; i++) {
+                    map.put(base + i, i);
+                    assert map.get(base + i) == i;
+                    assert map.get(-(i % 1000 + 1)) == i % 1000 + 1;
+                    if (i % 3 == 0) {
+                        assert map.remove(base + i) == i;
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert map.size() == 1000 + 8 * (20000 - 20000 / 3);
+    }
+
+}
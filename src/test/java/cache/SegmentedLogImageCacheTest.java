@@ -0,0 +1,237 @@
+package cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * @author Perekhod Oleg
+ */
+public class SegmentedLogImageCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    //данные дописываются в сегменты, новый сегмент открывается при превышении размера
+    public void testPutGet() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(new ImageCacheConfig().memoryLimit(0), directory, 100)) {
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                ids.add(cache.putToCache(image(i)));
+            }
+            for (int i = 0; i < 10; i++) {
+                assert Arrays.equals(cache.getFromCache(ids.get(i)), image(i));
+            }
+            //по 2 записи (8 + 40 байт) на сегмент
+            assert cache.getSegmentCount() == 5;
+            assert segmentFiles(directory) == 5;
+        }
+    }
+
+    @Test
+    //после удаления большей части записей сегменты компактизируются, оставшиеся записи читаются
+    public void testCompaction() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(new ImageCacheConfig().memoryLimit(0), directory, 100)) {
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                ids.add(cache.putToCache(image(i)));
+            }
+            //ждем записи на диск
+            for (Integer id : ids) {
+                cache.getFromCache(id);
+            }
+            for (int i = 0; i < 10; i++) {
+                if (i % 4 != 0) {
+                    assert cache.removeFromCache(ids.get(i));
+                }
+            }
+            for (int i = 0; i < 100 && segmentFiles(directory) > 3; i++) {
+                Thread.sleep(10);
+            }
+            assert segmentFiles(directory) <= 3;
+            for (int i = 0; i < 10; i++) {
+                byte[] data = cache.getFromCache(ids.get(i));
+                assert i % 4 == 0 ? Arrays.equals(data, image(i)) : data == null;
+            }
+        }
+    }
+
+    @Test
+    //чтение без копирования: отображение сегмента в память и transferTo в канал
+    public void testZeroCopy() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(new ImageCacheConfig().memoryLimit(0), directory, 100)) {
+            int i1 = cache.putToCache(image(1));
+            int i2 = cache.putToCache(image(2));
+            ByteBuffer buffer = cache.getFromCacheAsBuffer(i2);
+            assert buffer.isReadOnly();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            assert Arrays.equals(data, image(2));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assert cache.transferTo(i1, Channels.newChannel(out)) == 40;
+            assert Arrays.equals(out.toByteArray(), image(1));
+            assert cache.transferTo(100, Channels.newChannel(out)) == -1;
+        }
+    }
+
+    @Test
+    //данные из потока пишутся в сегмент кусками, оборванная запись пропускается при компактизации
+    public void testStreaming() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(new ImageCacheConfig().memoryLimit(0), directory, 100)) {
+            byte[] large = new byte[200 * 1024];
+            for (int i = 0; i < large.length; i++) {
+                large[i] = (byte) i;
+            }
+            int id = cache.putToCache(new ByteArrayInputStream(large), large.length);
+            try {
+                cache.putToCache(new ByteArrayInputStream(image(1)), 50);
+                assert false;
+            } catch (EOFException e) {
+                //ожидаемо
+            }
+            int small = cache.putToCache(Channels.newChannel(new ByteArrayInputStream(image(2))), 40);
+            //сегмент с оборванной записью не содержит живых данных и компактизируется сразу после переключения
+            assert cache.getSegmentCount() == 2;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = cache.getFromCacheAsStream(id);
+            byte[] chunk = new byte[4096];
+            int count;
+            while ((count = in.read(chunk)) >= 0) {
+                out.write(chunk, 0, count);
+            }
+            assert Arrays.equals(out.toByteArray(), large);
+
+            assert cache.removeFromCache(id);
+            for (int i = 0; i < 100 && segmentFiles(directory) > 1; i++) {
+                Thread.sleep(10);
+            }
+            assert segmentFiles(directory) == 1;
+            assert Arrays.equals(cache.getFromCache(small), image(2));
+        }
+    }
+
+    @Test
+    //после перезапуска записи с диска читаются, удаленные записи не возвращаются, id продолжаются
+    public void testWarmRestart() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        ImageCacheConfig config = new ImageCacheConfig().memoryLimit(0).persistent(true);
+        List<Integer> ids = new ArrayList<>();
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(config, directory, 100)) {
+            for (int i = 0; i < 10; i++) {
+                ids.add(cache.putToCache(image(i)));
+            }
+            for (Integer id : ids) {
+                cache.getFromCache(id);
+            }
+            assert cache.removeFromCache(ids.get(3));
+        }
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(config, directory, 100)) {
+            for (int i = 0; i < 10; i++) {
+                byte[] data = cache.getFromCache(ids.get(i));
+                assert i == 3 ? data == null : Arrays.equals(data, image(i));
+            }
+            int id = cache.putToCache(image(10));
+            assert id > ids.get(9);
+            assert Arrays.equals(cache.getFromCache(id), image(10));
+            assert cache.removeFromCache(ids.get(0));
+            ids.add(id);
+        }
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(config, directory, 100)) {
+            assert cache.getFromCache(ids.get(0)) == null;
+            assert Arrays.equals(cache.getFromCache(ids.get(10)), image(10));
+        }
+    }
+
+    @Test
+    //компактизация с журналом: старый сегмент удаляется после записи журнала потоком записи, удаления во время
+    //компактизации не возвращаются после перезапуска
+    public void testCompactionRestart() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        ImageCacheConfig config = new ImageCacheConfig().memoryLimit(0).persistent(true);
+        List<Integer> ids = new ArrayList<>();
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(config, directory, 100)) {
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 10; i++) {
+                    int id = cache.putToCache(image(i));
+                    cache.getFromCache(id);
+                    ids.add(id);
+                }
+                //удаляем, пока компактизация переносит записи прошлых раундов
+                for (int i = ids.size() - 10; i < ids.size(); i++) {
+                    if (i % 4 != 0) {
+                        assert cache.removeFromCache(ids.get(i));
+                    }
+                }
+            }
+            //пачка записи сохраняет журнал и удаляет компактизированные сегменты: остаются файлы сегментов и журнал
+            for (int i = 0; i < 100 && segmentFiles(directory) > cache.getSegmentCount() + 1; i++) {
+                cache.getFromCache(cache.putToCache(image(0)));
+                Thread.sleep(10);
+            }
+            assert segmentFiles(directory) == cache.getSegmentCount() + 1;
+        }
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(config, directory, 100)) {
+            for (int i = 0; i < ids.size(); i++) {
+                byte[] data = cache.getFromCache(ids.get(i));
+                assert i % 4 == 0 ? Arrays.equals(data, image(i % 10)) : data == null;
+            }
+        }
+    }
+
+    @Test
+    //журнал индекса переписывается, когда в нем много устаревших записей
+    public void testIndexRewrite() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        ImageCacheConfig config = new ImageCacheConfig().memoryLimit(0).persistent(true);
+        int kept;
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(config, directory, 1000)) {
+            kept = cache.putToCache(image(1));
+            for (int i = 0; i < 2000; i++) {
+                int id = cache.putToCache(image(i));
+                cache.getFromCache(id);
+                cache.removeFromCache(id);
+            }
+        }
+        assert Files.size(directory.resolve("index.log")) < 2000 * IndexJournal.RECORD_SIZE;
+        try (SegmentedLogImageCache cache = new SegmentedLogImageCache(config, directory, 1000)) {
+            assert Arrays.equals(cache.getFromCache(kept), image(1));
+            assert cache.putToCache(image(2)) > kept + 2000;
+        }
+    }
+
+
+    //--------------------------UTIL------------------------------//
+
+    private static byte[] image(int i) {
+        byte[] data = new byte[40];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
+    private static long segmentFiles(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+}
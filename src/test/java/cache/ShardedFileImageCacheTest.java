@@ -0,0 +1,95 @@
+package cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * @author Perekhod Oleg
+ */
+public class ShardedFileImageCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    //записи раскладываются по каталогам шардов и читаются обратно
+    public void testPutGet() throws Exception {
+        List<Path> directories = directories(3);
+        ImageCacheConfig config = new ImageCacheConfig().memoryLimit(0);
+        try (ShardedFileImageCache cache = new ShardedFileImageCache(config, directories)) {
+            //настройки вызывающего не меняются
+            assert config.getSpillShards() == 1;
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                ids.add(cache.putToCache(image(i)));
+            }
+            for (int i = 0; i < 30; i++) {
+                assert Arrays.equals(cache.getFromCache(ids.get(i)), image(i));
+            }
+            for (Integer id : ids) {
+                assert Files.exists(directories.get(cache.shardOf(id)).resolve(id + ".img"));
+            }
+            for (Path directory : directories) {
+                assert files(directory) > 0;
+            }
+
+            for (Integer id : ids) {
+                assert cache.removeFromCache(id);
+            }
+            for (Path directory : directories) {
+                assert files(directory) == 0;
+            }
+        }
+    }
+
+    @Test
+    //потоковая запись и чтение без копирования
+    public void testStreamingAndZeroCopy() throws Exception {
+        List<Path> directories = directories(2);
+        try (ShardedFileImageCache cache = new ShardedFileImageCache(new ImageCacheConfig().memoryLimit(0), directories)) {
+            int id = cache.putToCache(new ByteArrayInputStream(image(7)), 40);
+            ByteBuffer buffer = cache.getFromCacheAsBuffer(id);
+            assert buffer.isReadOnly() && buffer.remaining() == 40 && buffer.get(0) == 7;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assert cache.transferTo(id, Channels.newChannel(out)) == 40;
+            assert Arrays.equals(out.toByteArray(), image(7));
+        }
+    }
+
+
+    //--------------------------UTIL------------------------------//
+
+    private List<Path> directories(int count) {
+        List<Path> directories = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            directories.add(folder.getRoot().toPath().resolve("disk" + i));
+        }
+        return directories;
+    }
+
+    private static byte[] image(int i) {
+        byte[] data = new byte[40];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
+    private static long files(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Perekhod Oleg
+ */
+public class SlabAllocatorTest {
+
+    @Test
+    //запись и чтение блока, выравнивание размера
+    public void testAllocate() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(1024, 256);
+        SlabAllocator.Block block = allocator.allocate(5);
+        block.write(new byte[]{1, 2, 3, 4, 5});
+        assert Arrays.equals(block.read(), new byte[]{1, 2, 3, 4, 5});
+        assert allocator.getAllocatedBytes() == SlabAllocator.ALIGNMENT;
+        assert allocator.getReservedBytes() == 256;
+        //блок больше слаба не выделяется
+        assert allocator.allocate(257) == null;
+    }
+
+    @Test
+    //слабы выделяются только в пределах capacity
+    public void testCapacity() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(512, 256);
+        assert allocator.allocate(200) != null;
+        assert allocator.allocate(200) != null;
+        assert allocator.allocate(200) == null;
+        assert allocator.getReservedBytes() == 512;
+    }
+
+    @Test
+    //освобожденные участки склеиваются и переиспользуются
+    public void testFreeAndReuse() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(256, 256);
+        SlabAllocator.Block b1 = allocator.allocate(64);
+        SlabAllocator.Block b2 = allocator.allocate(64);
+        SlabAllocator.Block b3 = allocator.allocate(64);
+        SlabAllocator.Block b4 = allocator.allocate(64);
+        assert allocator.allocate(16) == null;
+
+        //освобождаем два несмежных блока: 128 свободных байт, но кусками по 64
+        allocator.free(b1);
+        allocator.free(b3);
+        assert allocator.getFragmentation() == 0.5;
+        assert allocator.allocate(128) == null;
+
+        //после освобождения b2 участки склеиваются в один
+        allocator.free(b2);
+        assert allocator.getFragmentation() == 0;
+        SlabAllocator.Block b5 = allocator.allocate(192);
+        assert b5 != null;
+        b5.write(new byte[192]);
+        assert allocator.getAllocatedBytes() == 256;
+        assert allocator.getReservedBytes() == 256;
+
+        allocator.free(b4);
+        allocator.free(b5);
+        assert allocator.getAllocatedBytes() == 0;
+    }
+
+    @Test
+    //случайные выделения и освобождения: живые блоки не пересекаются и сохраняют свои данные
+    public void testRandomAllocateAndFree() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(4096, 1024);
+        Random random = new Random(1);
+        List<SlabAllocator.Block> blocks = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            if (!blocks.isEmpty() && random.nextInt(3) == 0) {
+                int index = random.nextInt(blocks.size());
+                SlabAllocator.Block block = blocks.remove(index);
+                byte[] data = contents.remove(index);
+                assert Arrays.equals(block.read(), data);
+                allocator.free(block);
+                continue;
+            }
+            SlabAllocator.Block block = allocator.allocate(1 + random.nextInt(200));
+            if (block == null) {
+                continue;
+            }
+            byte[] data = new byte[block.length()];
+            random.nextBytes(data);
+            block.write(data);
+            blocks.add(block);
+            contents.add(data);
+        }
+        long allocated = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            assert Arrays.equals(blocks.get(i).read(), contents.get(i));
+            allocated += (blocks.get(i).length() + SlabAllocator.ALIGNMENT - 1) & -SlabAllocator.ALIGNMENT;
+        }
+        //пересекающиеся блоки испортили бы данные друг друга, а учет занятой памяти разошелся бы с блоками
+        assert allocated == allocator.getAllocatedBytes();
+    }
+
+}
@@ -0,0 +1,46 @@
+package cache.metrics;
+
+import org.junit.Test;
+
+/**
+ * @author Perekhod Oleg
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    //значения раскладываются по корзинам степеней двойки, перцентили с точностью до корзины
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100);
+        }
+        histogram.record(10_000);
+        histogram.record(-5);
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assert snapshot.getCount() == 101;
+        assert snapshot.getSum() == 99 * 100 + 10_000;
+        assert snapshot.getBucketCount(0) == 1;
+        assert snapshot.getBucketCount(7) == 99;
+        assert snapshot.getPercentile(50) == 127;
+        assert snapshot.getPercentile(100) == 16383;
+        assert new LatencyHistogram().snapshot().getPercentile(99) == 0;
+    }
+
+    @Test
+    //снимок реестра содержит все зарегистрированные метрики
+    public void testRegistry() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("hits").add(3);
+        registry.counter("hits").increment();
+        registry.gauge("size", () -> 42);
+        registry.histogram("latency").record(1);
+
+        MetricsSnapshot snapshot = registry.snapshot();
+        assert snapshot.getCounter("hits") == 4;
+        assert snapshot.getCounter("unknown") == 0;
+        assert snapshot.getGauge("size") == 42;
+        assert snapshot.getHistogram("latency").getCount() == 1;
+    }
+
+}